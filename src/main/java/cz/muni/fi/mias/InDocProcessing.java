@@ -4,8 +4,11 @@
  */
 package cz.muni.fi.mias;
 
+import cz.muni.fi.mias.indexing.DocumentWatchdog;
+import cz.muni.fi.mias.indexing.doc.BufferedDocumentSource;
 import cz.muni.fi.mias.indexing.doc.DocumentSource;
 import cz.muni.fi.mias.indexing.doc.FileDocument;
+import cz.muni.fi.mias.indexing.doc.MathExtractor;
 import cz.muni.fi.mias.indexing.doc.ZipEntryDocument;
 import cz.muni.fi.mias.math.Formula;
 import cz.muni.fi.mias.math.MathMLConf;
@@ -14,9 +17,7 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -28,12 +29,9 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import org.apache.logging.log4j.LogManager;
@@ -41,8 +39,6 @@ import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * Class for processing MathML and inserting M-terms back to the documents and storing as a copy.
@@ -145,7 +141,7 @@ public class InDocProcessing {
                     Enumeration<? extends ZipEntry> e = zipFile.entries();
                     while (e.hasMoreElements()) {
                         ZipEntry entry = e.nextElement();
-                        insertMathToXML(new ZipEntryDocument(zipFile, path, entry));
+                        insertMathToXML(new BufferedDocumentSource(new ZipEntryDocument(zipFile, path, entry)), entry.getSize());
                     }
                 } catch (ZipException ex) {
                     LOG.fatal(ex);
@@ -153,23 +149,34 @@ public class InDocProcessing {
                     LOG.fatal(ex);
                 }
             } else {
-                insertMathToXML(new FileDocument(file, path));
+                insertMathToXML(new BufferedDocumentSource(new FileDocument(file, path), file), file.length());
             }
         }
 
-        private void insertMathToXML(DocumentSource source) {
-            try(InputStreamReader isr1 = new InputStreamReader(source.resetStream(), "UTF-8");
-                    InputStreamReader isr2 = new InputStreamReader(source.resetStream(), "UTF-8")) {
-                MathTokenizer mt = new MathTokenizer(isr1, true, MathTokenizer.MathMLType.BOTH);
-                Map<Integer, List<Formula>> forms = mt.getFormulae();
-                DocumentBuilder builder = MIaSUtils.prepareDocumentBuilder();
-                InputSource is = new InputSource(isr2);
-                Document document = builder.parse(is);
+        private void insertMathToXML(DocumentSource source, long size) {
+            DocumentWatchdog watchdog = DocumentWatchdog.getInstance();
+            String sourcePath = source.getDocumentSourcePath();
+            if (watchdog.isQuarantined(sourcePath)) {
+                LOG.info("Skipping quarantined document {}", sourcePath);
+                return;
+            }
+            if (watchdog.isOverSize(size)) {
+                watchdog.quarantine(sourcePath, "size");
+                return;
+            }
+            DocumentWatchdog.Ticket ticket = watchdog.watch(sourcePath);
+            try {
+                MathExtractor math = new MathExtractor(source);
+                Document document = math.getDocument();
+                if (document == null) {
+                    return;
+                }
+                Map<Integer, List<Formula>> forms = math.getFormulae(MathTokenizer.MathMLType.BOTH);
                 NodeList maths = document.getElementsByTagNameNS(MathMLConf.MATHML_NAMESPACE_URI, "math");
                 for (int i = 0; i < maths.getLength(); i++) {
                     List<Formula> formulae = forms.get(i);
                     String mterms = "";
-                    for (int j = 0; j < formulae.size(); j++) {
+                    for (int j = 0; formulae != null && j < formulae.size(); j++) {
                         Formula f = formulae.get(j);
                         mterms += "{\"" + Formula.nodeToString(f.getNode(), false, MathMLConf.getElementDictionary(), MathMLConf.getAttrDictionary(), MathMLConf.getIgnoreNode()) + "\",\"" + f.getWeight() + "}";
                     }
@@ -182,13 +189,11 @@ public class InDocProcessing {
                     maths.item(i).appendChild(el);
                 }
                 writeToFile(document, resolveNewPath(file));
-            } catch (SAXException | ParserConfigurationException ex) {
-                LOG.fatal(ex);
-            } catch (UnsupportedEncodingException ex) {
-                LOG.fatal(ex);
             } catch (IOException ex) {
                 LOG.fatal(ex);
-            } 
+            } finally {
+                ticket.close();
+            }
         }
 
         private void writeToFile(Document document, String path) {
@@ -208,8 +213,7 @@ public class InDocProcessing {
                     out = new FileOutputStream(path);
                 }
                 // Use a Transformer for output
-                TransformerFactory tFactory = TransformerFactory.newInstance();
-                Transformer transformer = tFactory.newTransformer();
+                Transformer transformer = MIaSUtils.prepareTransformer();
                 DOMSource source = new DOMSource(document);
                 if (document.getDoctype() != null) {
                     String systemValue = (new File(document.getDoctype().getSystemId())).getName();
@@ -1,6 +1,8 @@
 package cz.muni.fi.mias;
 
+import cz.muni.fi.mias.indexing.EventLogReport;
 import cz.muni.fi.mias.indexing.Indexing;
+import java.io.File;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -33,14 +35,22 @@ public class MIaS {
                 Indexing i = new Indexing();
                 i.indexFiles(cmd.getOptionValues(Settings.OPTION_ADD)[0], cmd.getOptionValues(Settings.OPTION_ADD)[1]);
             }
+            if (cmd.hasOption(Settings.OPTION_RESUME)) {
+                Indexing i = new Indexing();
+                i.resume();
+            }
             if (cmd.hasOption(Settings.OPTION_OVERWRITE)) {
                 Indexing i = new Indexing();
                 i.deleteIndexDir();
                 i.indexFiles(cmd.getOptionValues(Settings.OPTION_OVERWRITE)[0], cmd.getOptionValues(Settings.OPTION_OVERWRITE)[1]);
             }
+            if (cmd.hasOption(Settings.OPTION_MERGESHARDS)) {
+                Indexing i = new Indexing();
+                i.mergeShards(cmd.getOptionValues(Settings.OPTION_MERGESHARDS));
+            }
             if (cmd.hasOption(Settings.OPTION_OPTIMIZE)) {
                 Indexing i = new Indexing();
-                i.optimize();
+                i.optimize(cmd.getOptionValue(Settings.OPTION_OPTIMIZE));
             }
             if (cmd.hasOption(Settings.OPTION_DELETEINDEX)) {
                 Indexing i = new Indexing();
@@ -54,11 +64,23 @@ public class MIaS {
                 Indexing i = new Indexing();
                 i.getStats();
             }
+            if (cmd.hasOption(Settings.OPTION_ANALYZE)) {
+                Indexing i = new Indexing();
+                i.analyzeFootprint(Integer.parseInt(cmd.getOptionValue(Settings.OPTION_ANALYZE, "20")));
+            }
+            if (cmd.hasOption(Settings.OPTION_FINGERPRINTS)) {
+                Indexing i = new Indexing();
+                i.reportFingerprints();
+            }
             if (cmd.hasOption(Settings.OPTION_INDOCPROCESS)) {
                 InDocProcessing idp = new InDocProcessing(cmd.getOptionValues(Settings.OPTION_INDOCPROCESS)[0], cmd.getOptionValues(Settings.OPTION_INDOCPROCESS)[1]);
                 idp.process();
             }
-        } catch (ParseException ex) {
+            if (cmd.hasOption(Settings.OPTION_REPORT)) {
+                EventLogReport report = new EventLogReport(new File(cmd.getOptionValues(Settings.OPTION_REPORT)[0]));
+                report.writeReport(new File(cmd.getOptionValues(Settings.OPTION_REPORT)[1]));
+            }
+        } catch (ParseException | NumberFormatException ex) {
             printHelp(options);
         }
     }
@@ -5,16 +5,37 @@
 package cz.muni.fi.mias;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.xerces.dom.DOMImplementationImpl;
+import org.apache.xerces.dom.DocumentImpl;
+import org.apache.xerces.parsers.DOMParser;
+import org.apache.xerces.parsers.SAXParser;
+import org.apache.xerces.parsers.XIncludeAwareParserConfiguration;
+import org.apache.xerces.util.SymbolTable;
+import org.apache.xerces.util.SynchronizedSymbolTable;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
 import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
 
 /**
  * Utilities class.
@@ -24,6 +45,53 @@ import org.xml.sax.SAXException;
 public class MIaSUtils {
 
     private static final String MATHML_DTD = "/cz/muni/fi/mias/math/xhtml-math11-f.dtd";
+    private static final SymbolTable SYMBOL_TABLE = new SynchronizedSymbolTable();
+    private static final XMLGrammarPool GRAMMAR_POOL = new XMLGrammarPoolImpl();
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<>();
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<>();
+    private static final EntityResolver DTD_RESOLVER = new EntityResolver() {
+
+        public InputSource resolveEntity(String publicId, String systemId)
+                throws SAXException, java.io.IOException {
+            if (systemId.endsWith("dtd")) {
+                return new InputSource(new ByteArrayInputStream(getDtd()));
+            } else {
+                return null;
+            }
+        }
+    };
+    // services registered by xercesImpl and the JDK implementations they would replace
+    private static final String[][] JDK_XML_FACTORIES = {
+        {"javax.xml.parsers.DocumentBuilderFactory", "com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl"},
+        {"javax.xml.parsers.SAXParserFactory", "com.sun.org.apache.xerces.internal.jaxp.SAXParserFactoryImpl"},
+        {"javax.xml.datatype.DatatypeFactory", "com.sun.org.apache.xerces.internal.jaxp.datatype.DatatypeFactoryImpl"},
+        {"javax.xml.stream.XMLEventFactory", "com.sun.xml.internal.stream.events.XMLEventFactoryImpl"},
+        {"javax.xml.validation.SchemaFactory:http://www.w3.org/2001/XMLSchema", "com.sun.org.apache.xerces.internal.jaxp.validation.XMLSchemaFactory"},
+        {"org.xml.sax.driver", "com.sun.org.apache.xerces.internal.parsers.SAXParser"},
+        {"org.w3c.dom.DOMImplementationSourceList", "com.sun.org.apache.xerces.internal.dom.DOMXSImplementationSourceImpl"}
+    };
+    private static byte[] dtd;
+    private static Map<String, String> dtdEntities;
+
+    /**
+     * Keeps the JAXP factories of the JDK for all the XML processing outside of {@link #prepareDocumentBuilder()},
+     * e.g. in MathTokenizer. The xercesImpl library used by the document builders registers its own factories as
+     * services, which would otherwise replace the JDK parsers in the whole JVM. Factories set by system properties
+     * are kept.
+     */
+    public static synchronized void useJdkXmlFactories() {
+        for (String[] factory : JDK_XML_FACTORIES) {
+            if (System.getProperty(factory[0]) != null) {
+                continue;
+            }
+            try {
+                Class.forName(factory[1], false, ClassLoader.getSystemClassLoader());
+                System.setProperty(factory[0], factory[1]);
+            } catch (ClassNotFoundException ex) {
+                // not a JDK with the bundled Xerces, the factories are looked up as usual
+            }
+        }
+    }
 
     /**
      * Extracts string content from a reader.
@@ -43,21 +111,149 @@ public class MIaSUtils {
         return builder.toString();
     }
 
+    /**
+     * Returns the XML document builder of the calling thread. The builders share a cache of the parsed MathML DTD,
+     * so the DTD is read and compiled only once per its public and system id. As the cached grammar does not keep the
+     * entity declarations, the entities of the DTD are declared in every parse up front.
+     *
+     * @return Reset namespace aware document builder resolving DTDs to the MathML DTD.
+     * @throws ParserConfigurationException
+     */
     public static DocumentBuilder prepareDocumentBuilder() throws ParserConfigurationException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        builder.setEntityResolver(new EntityResolver() {
-
-            public InputSource resolveEntity(String publicId, String systemId)
-                    throws SAXException, java.io.IOException {
-                if (systemId.endsWith("dtd")) {
-                    return new InputSource(MIaSUtils.class.getResourceAsStream(MATHML_DTD));
-                } else {
-                    return null;
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        if (builder == null) {
+            builder = new CachingDocumentBuilder(getDtdEntities());
+            DOCUMENT_BUILDER.set(builder);
+        } else {
+            builder.reset();
+        }
+        builder.setEntityResolver(DTD_RESOLVER);
+        return builder;
+    }
+
+    /**
+     * 
+     * @return Reset XML transformer of the calling thread.
+     * @throws TransformerConfigurationException
+     */
+    public static Transformer prepareTransformer() throws TransformerConfigurationException {
+        Transformer transformer = TRANSFORMER.get();
+        if (transformer == null) {
+            transformer = TransformerFactory.newInstance().newTransformer();
+            TRANSFORMER.set(transformer);
+        } else {
+            transformer.reset();
+        }
+        return transformer;
+    }
+
+    private static synchronized Map<String, String> getDtdEntities() throws ParserConfigurationException {
+        if (dtdEntities == null) {
+            final Map<String, String> entities = new HashMap<>();
+            try {
+                SAXParser parser = new SAXParser(SYMBOL_TABLE);
+                parser.setEntityResolver(DTD_RESOLVER);
+                parser.setProperty("http://xml.org/sax/properties/declaration-handler", new DefaultHandler2() {
+                    @Override
+                    public void internalEntityDecl(String name, String value) {
+                        if (!name.startsWith("%")) {
+                            entities.put(name, value);
+                        }
+                    }
+                });
+                parser.parse(new InputSource(new StringReader("<!DOCTYPE math SYSTEM \"math.dtd\"><math/>")));
+            } catch (SAXException | IOException ex) {
+                throw new ParserConfigurationException("Cannot read the entities of the MathML DTD: " + ex.getMessage());
+            }
+            dtdEntities = entities;
+        }
+        return dtdEntities;
+    }
+
+    private static synchronized byte[] getDtd() throws IOException {
+        if (dtd == null) {
+            try (InputStream is = MIaSUtils.class.getResourceAsStream(MATHML_DTD)) {
+                dtd = IOUtils.toByteArray(is);
+            }
+        }
+        return dtd;
+    }
+
+    /**
+     * DocumentBuilder over a reusable Xerces DOMParser sharing the DTD grammar pool.
+     */
+    private static class CachingDocumentBuilder extends DocumentBuilder {
+
+        private final DOMParser parser;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+
+        CachingDocumentBuilder(final Map<String, String> entities) throws ParserConfigurationException {
+            XIncludeAwareParserConfiguration configuration = new XIncludeAwareParserConfiguration(SYMBOL_TABLE, GRAMMAR_POOL) {
+                @Override
+                protected void reset() throws XNIException {
+                    super.reset();
+                    for (Map.Entry<String, String> entity : entities.entrySet()) {
+                        fEntityManager.addInternalEntity(entity.getKey(), entity.getValue());
+                    }
                 }
+            };
+            parser = new DOMParser(configuration);
+            try {
+                parser.setFeature("http://xml.org/sax/features/namespaces", true);
+                parser.setFeature("http://apache.org/xml/features/dom/create-entity-ref-nodes", false);
+            } catch (SAXException ex) {
+                throw new ParserConfigurationException(ex.getMessage());
             }
-        });
-        return builder;
+        }
+
+        @Override
+        public Document parse(InputSource is) throws SAXException, IOException {
+            parser.setEntityResolver(entityResolver);
+            parser.setErrorHandler(errorHandler);
+            try {
+                parser.parse(is);
+                return parser.getDocument();
+            } finally {
+                parser.dropDocumentReferences();
+            }
+        }
+
+        @Override
+        public void reset() {
+            parser.reset();
+            entityResolver = null;
+            errorHandler = null;
+        }
+
+        @Override
+        public boolean isNamespaceAware() {
+            return true;
+        }
+
+        @Override
+        public boolean isValidating() {
+            return false;
+        }
+
+        @Override
+        public void setEntityResolver(EntityResolver er) {
+            entityResolver = er;
+        }
+
+        @Override
+        public void setErrorHandler(ErrorHandler eh) {
+            errorHandler = eh;
+        }
+
+        @Override
+        public Document newDocument() {
+            return new DocumentImpl();
+        }
+
+        @Override
+        public DOMImplementation getDOMImplementation() {
+            return DOMImplementationImpl.getDOMImplementation();
+        }
     }
 }
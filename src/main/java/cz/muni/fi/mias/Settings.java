@@ -1,5 +1,6 @@
 package cz.muni.fi.mias;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.util.Properties;
 import org.apache.commons.cli.Option;
@@ -31,6 +32,11 @@ public class Settings {
     public static final String OPTION_DELETEINDEX = "deleteindex";
     public static final String OPTION_STATS = "stats";
     public static final String OPTION_INDOCPROCESS = "indocprocess";
+    public static final String OPTION_MERGESHARDS = "mergeshards";
+    public static final String OPTION_RESUME = "resume";
+    public static final String OPTION_REPORT = "report";
+    public static final String OPTION_ANALYZE = "analyze";
+    public static final String OPTION_FINGERPRINTS = "fingerprints";
     
     public static Options getMIaSOptions() {
         Options options = new Options();
@@ -45,6 +51,9 @@ public class Settings {
             .argName("input_path> <root_dir")
             .desc("where root_dir is an absolute path to a directory in the input_path to determine the relative path that the files will be indexed with")
             .build());
+        options.addOption(Option.builder(OPTION_RESUME)
+            .desc("Resumes the interrupted indexing run from the last checkpoint committed to the index.")
+            .build());
         options.addOption(Option.builder(OPTION_OVERWRITE)
             .hasArgs()
             .numberOfArgs(2)
@@ -53,11 +62,14 @@ public class Settings {
             .build());
         options.addOption(Option.builder(OPTION_DELETE)
             .hasArg()
-            .argName("dir_or_file")
-            .desc("Deletes file(s) from index.")
+            .argName("path|glob:pattern|ids:file")
+            .desc("Deletes file(s) from index: the documents of the file or directory with the relative path they were indexed with, of the relative paths matching the glob pattern, or with the ids listed in the file.")
             .build());
         options.addOption(Option.builder(OPTION_OPTIMIZE)
-            .desc("Optimizes the index for maximum searching performance.")
+            .hasArg()
+            .optionalArg(true)
+            .argName("max_segments|deletes")
+            .desc("Optimizes the index for maximum searching performance by merging it into max_segments segments (default 1), or with deletes by merging only the segments with deleted documents.")
             .build());
         options.addOption(Option.builder(OPTION_DELETEINDEX)
             .desc("Deletes the index.")
@@ -65,12 +77,32 @@ public class Settings {
         options.addOption(Option.builder(OPTION_STATS)
             .desc("Prints statistics about index.")
             .build());
+        options.addOption(Option.builder(OPTION_ANALYZE)
+            .hasArg()
+            .optionalArg(true)
+            .argName("top_terms")
+            .desc("Prints the on-disk size of the index broken down by file type and by field with the top_terms heaviest terms of every field (default 20).")
+            .build());
+        options.addOption(Option.builder(OPTION_FINGERPRINTS)
+            .desc("Reports the M-term fingerprints of the index: the exact fingerprint collisions and term sizes of an index of M-term texts, or the expected collisions of an index of fingerprints.")
+            .build());
         options.addOption(Option.builder(OPTION_INDOCPROCESS)
             .hasArgs()
             .numberOfArgs(2)
             .argName("input_path> <root_dir")
             .desc("where root_dir is an absolute path to a directory in the input_path. Processes math formulae and inserts M-terms into documents created under root_dir.")
             .build());
+        options.addOption(Option.builder(OPTION_MERGESHARDS)
+            .hasArgs()
+            .argName("index_dir...")
+            .desc("Merges separately built indexes (e.g. shards from other processes) into the index.")
+            .build());
+        options.addOption(Option.builder(OPTION_REPORT)
+            .hasArgs()
+            .numberOfArgs(2)
+            .argName("event_log> <output_file")
+            .desc("Generates an XHTML report of the formulae and their M-terms from the indexing event log.")
+            .build());
         return options;
     }
     
@@ -115,6 +147,21 @@ public class Settings {
         return result;
     }
     
+    /**
+     * 
+     * @return If true, a changed modification time of an already indexed file is verified by comparing the CRC-32
+     * of its content with the one stored in the index manifest, so files whose content did not change are not
+     * re-indexed.
+     */
+    public static boolean getManifestHash() {
+        String prop = config.getProperty("MANIFEST_HASH");
+        boolean result = false;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+    
     /**
      * 
      * @return Number of threads for processing.
@@ -128,6 +175,288 @@ public class Settings {
         return result;
     }
 
+    /**
+     * 
+     * @return Number of threads parsing the input files during indexing. Defaults to THREADS.
+     */
+    public static int getParseThreads() {
+        return getPositiveInt("PARSE_THREADS", getNumThreads());
+    }
+
+    /**
+     * 
+     * @return Number of threads adding documents to the IndexWriter. Defaults to THREADS.
+     */
+    public static int getIndexThreads() {
+        return getPositiveInt("INDEX_THREADS", getNumThreads());
+    }
+
+    /**
+     * 
+     * @return Capacity of the queues between the indexing stages. Defaults to 4 * THREADS.
+     */
+    public static int getQueueSize() {
+        return getPositiveInt("QUEUE_SIZE", 4 * getNumThreads());
+    }
+
+    /**
+     * 
+     * @return Number of independent index shards built in parallel. 1 means a single IndexWriter.
+     */
+    public static int getShards() {
+        return getPositiveInt("SHARDS", 1);
+    }
+
+    /**
+     * 
+     * @return Directory where the index shards are built. Defaults to INDEXDIR with the _shards suffix.
+     */
+    public static String getShardDir() {
+        String result = config.getProperty("SHARDDIR");
+        if (result == null || result.isEmpty()) {
+            result = getIndexDir() + "_shards";
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return If true, the index shards are merged into the INDEXDIR index and deleted when indexing finishes.
+     * If false, they are left as separate indexes in SHARDDIR.
+     */
+    public static boolean getMergeShards() {
+        String prop = config.getProperty("MERGE_SHARDS");
+        if (prop == null || prop.isEmpty()) {
+            return true;
+        }
+        return Boolean.parseBoolean(prop);
+    }
+
+    /**
+     * 
+     * @return Size in bytes from which the indexed files are memory-mapped instead of being read to the heap.
+     * Configured in megabytes by MMAP_THRESHOLD, defaults to 16 MB.
+     */
+    public static long getMmapThreshold() {
+        return getPositiveInt("MMAP_THRESHOLD", 16) * 1024L * 1024L;
+    }
+
+    /**
+     * 
+     * @return Maximum heap size in bytes of the cache of formula M-terms shared by the indexing threads. Configured
+     * in megabytes by FORMULA_CACHE_SIZE, defaults to 64 MB. 0 disables the cache.
+     */
+    public static long getFormulaCacheSize() {
+        String n = config.getProperty("FORMULA_CACHE_SIZE");
+        long result = 64;
+        try {
+            result = Long.parseLong(n);
+        } catch (Exception e) {
+        }
+        return Math.max(0, result) * 1024L * 1024L;
+    }
+
+    /**
+     * 
+     * @return File the formula cache is loaded from and saved to, null if the cache is not persisted.
+     */
+    public static String getFormulaCacheFile() {
+        String result = config.getProperty("FORMULA_CACHE_FILE");
+        if (result == null || result.isEmpty()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Seconds between the intermediate commits of an indexing run, 0 for no time based commits. Defaults
+     * to 300.
+     */
+    public static long getCommitInterval() {
+        return getNonNegativeLong("COMMIT_INTERVAL", 300);
+    }
+
+    /**
+     * 
+     * @return Megabytes flushed to the index between the intermediate commits of an indexing run, 0 for no size
+     * based commits. Defaults to 0.
+     */
+    public static long getCommitSize() {
+        return getNonNegativeLong("COMMIT_SIZE", 0);
+    }
+
+    /**
+     * 
+     * @return Size in megabytes of the RAM buffer of the IndexWriter. Defaults to 16.
+     */
+    public static double getRamBufferSize() {
+        String n = config.getProperty("RAM_BUFFER_MB");
+        double result = 16;
+        try {
+            result = Double.parseDouble(n);
+        } catch (Exception e) {
+        }
+        return result > 0 ? result : 16;
+    }
+
+    /**
+     * 
+     * @return Maximum number of threads merging index segments at once, -1 for the Lucene default.
+     */
+    public static int getMergeThreads() {
+        return (int) getNonNegativeLong("MERGE_THREADS", -1);
+    }
+
+    /**
+     * 
+     * @return Percentage of deleted documents above which a segment is merged by the optimization expunging the
+     * deleted documents. Defaults to 10.
+     */
+    public static double getMergeDeletesPct() {
+        String n = config.getProperty("MERGE_DELETES_PCT");
+        double result = 10;
+        try {
+            result = Double.parseDouble(n);
+        } catch (Exception e) {
+        }
+        return result >= 0 && result <= 100 ? result : 10;
+    }
+
+    /**
+     * 
+     * @return Maximum number of pending segment merges before indexing threads are stalled, -1 for the Lucene
+     * default.
+     */
+    public static int getMaxMerges() {
+        return (int) getNonNegativeLong("MAX_MERGES", -1);
+    }
+
+    /**
+     * 
+     * @return File the indexing metrics are periodically appended to, null if they are not dumped.
+     */
+    public static String getMetricsFile() {
+        String result = config.getProperty("METRICS_FILE");
+        if (result == null || result.isEmpty()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Seconds between the dumps of the indexing metrics. Defaults to 60.
+     */
+    public static int getMetricsInterval() {
+        return getPositiveInt("METRICS_INTERVAL", 60);
+    }
+
+    /**
+     * 
+     * @return File the indexing events are appended to as JSON lines, null if they are not logged.
+     */
+    public static String getEventLog() {
+        String result = config.getProperty("EVENT_LOG");
+        if (result == null || result.isEmpty()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Fraction of the document and formula events that are logged. Defaults to 1.
+     */
+    public static double getEventLogSampling() {
+        String n = config.getProperty("EVENT_LOG_SAMPLING");
+        double result = 1;
+        try {
+            result = Double.parseDouble(n);
+        } catch (Exception e) {
+        }
+        if (!(result >= 0 && result <= 1)) {
+            result = 1;
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Wall-clock budget of a single document in seconds, 0 for no limit. Defaults to 0.
+     */
+    public static long getDocTimeLimit() {
+        return getNonNegativeLong("DOC_TIME_LIMIT", 0);
+    }
+
+    /**
+     * 
+     * @return Maximum size of a single document source in bytes, 0 for no limit. MAX_SOURCE_SIZE is given in
+     * megabytes and defaults to 0.
+     */
+    public static long getMaxSourceSize() {
+        return getNonNegativeLong("MAX_SOURCE_SIZE", 0) * 1024 * 1024;
+    }
+
+    /**
+     * 
+     * @return Maximum number of nodes of a formula to be tokenized, 0 for no limit. Defaults to 0.
+     */
+    public static int getMaxFormulaNodes() {
+        return (int) Math.min(Integer.MAX_VALUE, getNonNegativeLong("MAX_FORMULA_NODES", 0));
+    }
+
+    /**
+     * 
+     * @return File the quarantined documents are recorded in. Defaults to mias.quarantine in the index directory,
+     * null if neither is set.
+     */
+    public static String getQuarantineFile() {
+        String result = config.getProperty("QUARANTINE_FILE");
+        if (result != null && !result.isEmpty()) {
+            return result;
+        }
+        String indexDir = config.getProperty("INDEXDIR");
+        if (indexDir == null || indexDir.isEmpty()) {
+            return null;
+        }
+        return new File(indexDir, "mias.quarantine").getPath();
+    }
+
+    /**
+     * 
+     * @return Milliseconds between the refreshes of the near-real-time searchers of a shared index. Defaults to 1000.
+     */
+    public static int getNrtRefresh() {
+        return getPositiveInt("NRT_REFRESH", 1000);
+    }
+
+    /**
+     * 
+     * @return Milliseconds a search may spend collecting hits before it returns the hits found so far. Defaults to
+     * 30000.
+     */
+    public static int getSearchTimeout() {
+        return getPositiveInt("SEARCH_TIMEOUT", 30000);
+    }
+
+    /**
+     * 
+     * @return Milliseconds the snippets of the results of one search may take to extract. Defaults to 500.
+     */
+    public static int getSnippetTimeout() {
+        return getPositiveInt("SNIPPET_TIMEOUT", 500);
+    }
+
+    /**
+     * 
+     * @return Number of threads extracting snippets, shared by all searches of a Searching. Defaults to 90 % of the
+     * available processors.
+     */
+    public static int getSnippetThreads() {
+        return getPositiveInt("SNIPPET_THREADS", Math.max(1, (int) Math.round(0.9 * Runtime.getRuntime().availableProcessors())));
+    }
+
     /**
      * 
      * @return Maximum number of results that the system retrieves.
@@ -160,6 +489,48 @@ public class Settings {
         return result;
     }
 
+    /**
+     * 
+     * @return If true, the M-terms are indexed and searched as their 64-bit fingerprints, with a bloom filter over
+     * the terms of the math fields. The index has to be built with the same setting as it is searched with.
+     */
+    public static boolean getMTermFingerprints() {
+        String prop = config.getProperty("MTERM_FINGERPRINTS");
+        boolean result = false;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return If true, the indexed document sources are stored compressed in the sources directory of the index, so
+     * snippets can be extracted without the original files.
+     */
+    public static boolean getSourceStore() {
+        String prop = config.getProperty("SOURCE_STORE");
+        boolean result = false;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return If true, the content and title fields are stored and indexed with offsets, so their snippets are
+     * highlighted from the postings.
+     */
+    public static boolean getContentOffsets() {
+        String prop = config.getProperty("CONTENT_OFFSETS");
+        boolean result = false;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+
     public static boolean getIndexFormulaeDocuments() {
         String prop = config.getProperty("FORMULA_DOCUMENTS");
         if (prop == null || prop.isEmpty()) {
@@ -168,4 +539,30 @@ public class Settings {
         boolean result = Boolean.parseBoolean(prop);
         return result;
     }
+
+    private static int getPositiveInt(String key, int defaultValue) {
+        String n = config.getProperty(key);
+        int result = defaultValue;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        if (result < 1) {
+            result = Math.max(1, defaultValue);
+        }
+        return result;
+    }
+
+    private static long getNonNegativeLong(String key, long defaultValue) {
+        String n = config.getProperty(key);
+        long result = defaultValue;
+        try {
+            result = Long.parseLong(n);
+        } catch (Exception e) {
+        }
+        if (result < 0) {
+            result = defaultValue;
+        }
+        return result;
+    }
 }
@@ -0,0 +1,144 @@
+package cz.muni.fi.mias.indexing;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Progress of an indexing run stored in the user data of the index commits, so an interrupted run can be resumed.
+ * Input files are numbered in the order they are discovered in. The checkpoint keeps the number of files completed
+ * without a gap from the start of the run and the ranges of the files completed out of order beyond them.
+ */
+public class Checkpoint {
+
+    public static final String INPUT = "mias.checkpoint.input";
+    public static final String ROOT = "mias.checkpoint.root";
+    public static final String COMPLETED = "mias.checkpoint.completed";
+    public static final String RANGES = "mias.checkpoint.ranges";
+    public static final String FINISHED = "mias.checkpoint.finished";
+
+    private final String input;
+    private final String root;
+    private long completed = 0;
+    private final TreeSet<Long> completedBeyond = new TreeSet<>();
+
+    /**
+     * @param input Input path of the indexing run.
+     * @param root Root directory of the document storage of the indexing run.
+     */
+    public Checkpoint(String input, String root) {
+        this.input = input;
+        this.root = root;
+    }
+
+    /**
+     * Restores the checkpoint from the user data of an index commit.
+     *
+     * @param commitData User data of the commit.
+     * @return Restored checkpoint or null if the commit has no checkpoint.
+     */
+    public static Checkpoint fromCommitData(Map<String, String> commitData) {
+        if (commitData == null || !commitData.containsKey(COMPLETED)) {
+            return null;
+        }
+        Checkpoint checkpoint = new Checkpoint(commitData.get(INPUT), commitData.get(ROOT));
+        checkpoint.completed = Long.parseLong(commitData.get(COMPLETED));
+        String ranges = commitData.get(RANGES);
+        if (ranges != null && !ranges.isEmpty()) {
+            for (String range : ranges.split(",")) {
+                int dash = range.indexOf('-');
+                long from = Long.parseLong(dash < 0 ? range : range.substring(0, dash));
+                long to = dash < 0 ? from : Long.parseLong(range.substring(dash + 1));
+                for (long i = from; i <= to; i++) {
+                    checkpoint.completedBeyond.add(i);
+                }
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @param commitData User data of an index commit.
+     * @return true if the commit was made at the end of an indexing run.
+     */
+    public static boolean isFinished(Map<String, String> commitData) {
+        return Boolean.parseBoolean(commitData.get(FINISHED));
+    }
+
+    public String getInput() {
+        return input;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * Marks the input file with given number as completely indexed.
+     *
+     * @param ordinal Number of the input file.
+     */
+    public synchronized void complete(long ordinal) {
+        if (ordinal == completed) {
+            completed++;
+            while (!completedBeyond.isEmpty() && completedBeyond.first() == completed) {
+                completedBeyond.pollFirst();
+                completed++;
+            }
+        } else if (ordinal > completed) {
+            completedBeyond.add(ordinal);
+        }
+    }
+
+    /**
+     * @param ordinal Number of the input file.
+     * @return true if the input file with given number has been completely indexed.
+     */
+    public synchronized boolean isCompleted(long ordinal) {
+        return ordinal < completed || completedBeyond.contains(ordinal);
+    }
+
+    /**
+     * @param finished true if the indexing run is over.
+     * @return User data for an index commit describing the current progress.
+     */
+    public synchronized Map<String, String> getCommitData(boolean finished) {
+        Map<String, String> result = new HashMap<>();
+        if (input != null) {
+            result.put(INPUT, input);
+        }
+        if (root != null) {
+            result.put(ROOT, root);
+        }
+        result.put(COMPLETED, String.valueOf(completed));
+        StringBuilder ranges = new StringBuilder();
+        Iterator<Long> it = completedBeyond.iterator();
+        if (it.hasNext()) {
+            long from = it.next();
+            long to = from;
+            while (it.hasNext()) {
+                long next = it.next();
+                if (next != to + 1) {
+                    appendRange(ranges, from, to);
+                    from = next;
+                }
+                to = next;
+            }
+            appendRange(ranges, from, to);
+        }
+        result.put(RANGES, ranges.toString());
+        result.put(FINISHED, String.valueOf(finished));
+        return result;
+    }
+
+    private static void appendRange(StringBuilder ranges, long from, long to) {
+        if (ranges.length() > 0) {
+            ranges.append(',');
+        }
+        ranges.append(from);
+        if (to != from) {
+            ranges.append('-').append(to);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Decides when the intermediate commits of an indexing run happen and runs them on a background thread, so the
+ * indexing threads keep adding documents while a commit is in progress. A commit is triggered when the configured
+ * time elapses since the last one or when the configured amount of data is flushed to the index directories since
+ * the last one. With both limits off the index is committed only at the end of the run.
+ */
+public class CommitPolicy {
+
+    private static final Logger LOG = LogManager.getLogger(CommitPolicy.class);
+    private static final long CHECK_INTERVAL = 1000;
+
+    private final long intervalMillis;
+    private final long flushBytes;
+    private final AtomicLong flushed = new AtomicLong();
+    private ScheduledExecutorService executor;
+    private volatile long lastCommit;
+
+    /**
+     * @param intervalSeconds Seconds between commits, 0 for no time based commits.
+     * @param flushMegabytes Megabytes flushed between commits, 0 for no size based commits.
+     */
+    public CommitPolicy(long intervalSeconds, long flushMegabytes) {
+        this.intervalMillis = intervalSeconds * 1000;
+        this.flushBytes = flushMegabytes * 1024 * 1024;
+    }
+
+    /**
+     * @return Commit policy configured by COMMIT_INTERVAL and COMMIT_SIZE settings.
+     */
+    public static CommitPolicy fromSettings() {
+        return new CommitPolicy(Settings.getCommitInterval(), Settings.getCommitSize());
+    }
+
+    /**
+     * Wraps the directory of an IndexWriter, so the data flushed to it counts towards the commit size limit.
+     *
+     * @param dir Index directory.
+     * @return Directory the IndexWriter should be opened on.
+     */
+    public Directory wrap(Directory dir) {
+        return flushBytes > 0 ? new FlushCountingDirectory(dir) : dir;
+    }
+
+    /**
+     * Starts checking the limits on a background thread.
+     *
+     * @param commit Action committing the index.
+     */
+    public synchronized void start(final Commit commit) {
+        if (intervalMillis <= 0 && flushBytes <= 0) {
+            return;
+        }
+        lastCommit = System.currentTimeMillis();
+        flushed.set(0);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "mias-commit"));
+        executor.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            boolean due = (intervalMillis > 0 && now - lastCommit >= intervalMillis)
+                    || (flushBytes > 0 && flushed.get() >= flushBytes);
+            if (due) {
+                lastCommit = now;
+                flushed.set(0);
+                try {
+                    long start = System.currentTimeMillis();
+                    commit.run();
+                    LOG.info("Intermediate commit took {} ms", System.currentTimeMillis() - start);
+                } catch (IOException | RuntimeException ex) {
+                    LOG.error("Intermediate commit failed: {}", ex.getMessage());
+                    LOG.error(ex);
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking the limits and waits for a running commit to finish.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            executor = null;
+        }
+    }
+
+    /**
+     * Commit of the index.
+     */
+    public interface Commit {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Directory counting the bytes written by segment flushes.
+     */
+    private class FlushCountingDirectory extends FilterDirectory {
+
+        FlushCountingDirectory(Directory in) {
+            super(in);
+        }
+
+        @Override
+        public IndexOutput createOutput(String name, IOContext context) throws IOException {
+            final IndexOutput out = super.createOutput(name, context);
+            if (context.context != IOContext.Context.FLUSH) {
+                return out;
+            }
+            return new IndexOutput() {
+                @Override
+                public void writeByte(byte b) throws IOException {
+                    out.writeByte(b);
+                }
+
+                @Override
+                public void writeBytes(byte[] b, int offset, int length) throws IOException {
+                    out.writeBytes(b, offset, length);
+                }
+
+                @Override
+                @Deprecated
+                public void flush() throws IOException {
+                    // still abstract in Lucene 4.10, the writers no longer call it
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flushed.addAndGet(out.getFilePointer());
+                    out.close();
+                }
+
+                @Override
+                public long getFilePointer() {
+                    return out.getFilePointer();
+                }
+
+                @Override
+                public long getChecksum() throws IOException {
+                    return out.getChecksum();
+                }
+            };
+        }
+    }
+}
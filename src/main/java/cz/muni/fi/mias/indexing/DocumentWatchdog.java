@@ -0,0 +1,237 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Per-document limits protecting the indexing from pathological inputs: the wall-clock budget of a document
+ * (DOC_TIME_LIMIT), the size of its source (MAX_SOURCE_SIZE) and the number of nodes of a single formula
+ * (MAX_FORMULA_NODES). Documents with too large sources are skipped, formulae with too many nodes are not tokenized
+ * and the math tokenization of a document stops once its budget is spent, so the document is indexed with its math
+ * only partly tokenized. The budget is checked cooperatively by {@link #isCancelled()} between tokenizations and by a
+ * monitor thread reporting the documents that overran it while still being processed.
+ * <p>
+ * Every over-limit document is recorded in the quarantine file as a tab separated line <code>action reason
+ * path</code>. Documents with the <code>skip</code> action, i.e. those over the time or size limit, are skipped by
+ * later runs; <code>partial</code> lines only report formulae left out. A document can be retried by removing its
+ * line from the file.
+ */
+public class DocumentWatchdog {
+
+    private static final Logger LOG = LogManager.getLogger(DocumentWatchdog.class);
+    private static final String SKIP = "skip";
+    private static final String PARTIAL = "partial";
+    private static DocumentWatchdog instance;
+
+    private final long timeLimitNanos;
+    private final long maxSourceSize;
+    private final int maxFormulaNodes;
+    private final File file;
+    private final Set<String> quarantined = ConcurrentHashMap.newKeySet();
+    private final Collection<Ticket> active = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Ticket> current = new ThreadLocal<>();
+    private Writer writer;
+    private ScheduledExecutorService monitor;
+
+    /**
+     * @param timeLimitSeconds Wall-clock budget of a document in seconds, 0 for no limit.
+     * @param maxSourceSize Maximum size of a document source in bytes, 0 for no limit.
+     * @param maxFormulaNodes Maximum number of nodes of a formula, 0 for no limit.
+     * @param file Quarantine file, null if the quarantine is not kept across runs.
+     */
+    public DocumentWatchdog(long timeLimitSeconds, long maxSourceSize, int maxFormulaNodes, File file) {
+        this.timeLimitNanos = TimeUnit.SECONDS.toNanos(timeLimitSeconds);
+        this.maxSourceSize = maxSourceSize;
+        this.maxFormulaNodes = maxFormulaNodes;
+        this.file = file;
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * @return Watchdog configured by the DOC_TIME_LIMIT, MAX_SOURCE_SIZE, MAX_FORMULA_NODES and QUARANTINE_FILE
+     * settings.
+     */
+    public static synchronized DocumentWatchdog getInstance() {
+        if (instance == null) {
+            String path = Settings.getQuarantineFile();
+            instance = new DocumentWatchdog(Settings.getDocTimeLimit(), Settings.getMaxSourceSize(),
+                    Settings.getMaxFormulaNodes(), path == null ? null : new File(path));
+        }
+        return instance;
+    }
+
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 3);
+                if (parts.length == 3 && parts[0].equals(SKIP)) {
+                    quarantined.add(parts[2]);
+                }
+            }
+            LOG.info("{} documents in quarantine file {} will be skipped", quarantined.size(), file.getAbsolutePath());
+        } catch (IOException ex) {
+            LOG.error("Cannot read quarantine file {}: {}", file.getAbsolutePath(), ex.getMessage());
+        }
+    }
+
+    /**
+     * @param path Path of a document source.
+     * @return true if the document was quarantined by this or an earlier run.
+     */
+    public boolean isQuarantined(String path) {
+        return quarantined.contains(path);
+    }
+
+    /**
+     * @param size Size of a document source in bytes, negative if unknown.
+     * @return true if the source is larger than the limit
+     */
+    public boolean isOverSize(long size) {
+        return maxSourceSize > 0 && size > maxSourceSize;
+    }
+
+    /**
+     * @return Maximum number of nodes of a formula, 0 for no limit.
+     */
+    public int getMaxFormulaNodes() {
+        return maxFormulaNodes;
+    }
+
+    /**
+     * Quarantines a document, so later runs skip it.
+     *
+     * @param path Path of the document source.
+     * @param reason Limit the document is over.
+     */
+    public void quarantine(String path, String reason) {
+        if (quarantined.add(path)) {
+            LOG.warn("Document {} quarantined, {} limit exceeded", path, reason);
+            write(SKIP, reason, path);
+        }
+    }
+
+    /**
+     * Reports a document indexed with its math only partly tokenized.
+     *
+     * @param path Path of the document source.
+     * @param reason Limit the document is over.
+     */
+    public void reportPartial(String path, String reason) {
+        LOG.warn("Document {} indexed with math partly tokenized, {} limit exceeded", path, reason);
+        write(PARTIAL, reason, path);
+    }
+
+    private synchronized void write(String action, String reason, String path) {
+        if (file == null) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+            }
+            writer.write(action + "\t" + reason + "\t" + path + "\n");
+            writer.flush();
+        } catch (IOException ex) {
+            LOG.error("Cannot write quarantine file {}: {}", file.getAbsolutePath(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts watching the processing of a document by the current thread. The ticket must be closed when the
+     * processing ends.
+     *
+     * @param path Path of the document source.
+     * @return Ticket of the document.
+     */
+    public Ticket watch(String path) {
+        Ticket ticket = new Ticket(path, System.nanoTime() + timeLimitNanos);
+        current.set(ticket);
+        if (timeLimitNanos > 0) {
+            active.add(ticket);
+            startMonitor();
+        }
+        return ticket;
+    }
+
+    /**
+     * @return true if the document processed by the current thread has spent its time budget
+     */
+    public boolean isCancelled() {
+        Ticket ticket = current.get();
+        return ticket != null && ticket.check(System.nanoTime());
+    }
+
+    private synchronized void startMonitor() {
+        if (monitor == null) {
+            monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "mias-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            monitor.scheduleWithFixedDelay(() -> {
+                long now = System.nanoTime();
+                for (Ticket ticket : active) {
+                    ticket.check(now);
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Processing of a single document.
+     */
+    public class Ticket implements AutoCloseable {
+
+        private final String path;
+        private final long deadline;
+        private final AtomicBoolean expired = new AtomicBoolean();
+
+        private Ticket(String path, long deadline) {
+            this.path = path;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Quarantines the document the first time it is found over its budget.
+         */
+        private boolean check(long now) {
+            if (expired.get()) {
+                return true;
+            }
+            if (timeLimitNanos > 0 && now - deadline > 0 && expired.compareAndSet(false, true)) {
+                quarantine(path, "time");
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            active.remove(this);
+            if (current.get() == this) {
+                current.remove();
+            }
+        }
+    }
+}
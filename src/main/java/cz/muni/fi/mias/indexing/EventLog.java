@@ -0,0 +1,187 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Structured log of indexing events written as JSON lines by a dedicated writer thread. Events are queued without
+ * blocking the indexing threads; when the writer cannot keep up, events are dropped and counted. Per-document and
+ * per-formula events are sampled with the EVENT_LOG_SAMPLING rate, the other events are always logged. When the file
+ * cannot be written, the log is disabled and the queued events are discarded.
+ * <p>
+ * Every line is an object with the <code>event</code> and <code>time</code> keys followed by the keys of the event:
+ * <ul>
+ * <li><code>run</code> - input, start of an indexing run</li>
+ * <li><code>end</code> - files, documents, millis, end of an indexing run</li>
+ * <li><code>file</code> - path, docs, indexed file</li>
+ * <li><code>document</code> - path, id, indexed document</li>
+ * <li><code>formula</code> - path, position, type, xml, terms, extracted formula with its M-terms and weights</li>
+ * <li><code>commit</code> - millis, commit of the index</li>
+ * </ul>
+ */
+public class EventLog {
+
+    private static final Logger LOG = LogManager.getLogger(EventLog.class);
+    private static final String STOP = new String();
+    private static EventLog instance = new EventLog(null, 0);
+
+    private final File file;
+    private final double sampling;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(65536);
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean failed;
+    private Thread writerThread;
+
+    private EventLog(File file, double sampling) {
+        this.file = file;
+        this.sampling = sampling;
+    }
+
+    /**
+     * @return Event log of the current indexing run. Disabled if no run opened it.
+     */
+    public static synchronized EventLog getInstance() {
+        return instance;
+    }
+
+    /**
+     * Opens the event log configured by the EVENT_LOG and EVENT_LOG_SAMPLING settings. Events are appended to the
+     * file.
+     *
+     * @return Opened event log, disabled if EVENT_LOG is not set.
+     */
+    public static synchronized EventLog open() {
+        instance.close();
+        String path = Settings.getEventLog();
+        instance = new EventLog(path == null ? null : new File(path), Settings.getEventLogSampling());
+        if (instance.isEnabled()) {
+            instance.start();
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return file != null && !failed;
+    }
+
+    /**
+     * @return true if a sampled event should be logged now
+     */
+    public boolean sample() {
+        return isEnabled() && (sampling >= 1 || ThreadLocalRandom.current().nextDouble() < sampling);
+    }
+
+    /**
+     * Creates a new event. The event is logged by {@link Event#log()}.
+     *
+     * @param type Type of the event.
+     * @return New event.
+     */
+    public Event event(String type) {
+        return new Event(type);
+    }
+
+    private void start() {
+        writerThread = new Thread(() -> {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while ((line = queue.take()) != STOP) {
+                    writer.write(line);
+                    writer.write('\n');
+                    if (queue.isEmpty()) {
+                        writer.flush();
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.error("Cannot write event log {}: {}", file.getAbsolutePath(), ex.getMessage());
+                failed = true;
+                queue.clear();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "mias-eventlog");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Writes the queued events and stops the writer thread.
+     */
+    public synchronized void close() {
+        if (writerThread != null) {
+            try {
+                // a writer thread that died does not take the stop mark from a full queue
+                boolean stopped = false;
+                while (!stopped && writerThread.isAlive()) {
+                    stopped = queue.offer(STOP, 100, TimeUnit.MILLISECONDS);
+                }
+                writerThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+            if (dropped.get() > 0) {
+                LOG.warn("{} events were dropped from the event log", dropped.get());
+            }
+        }
+    }
+
+    /**
+     * Event being built. Values are added in the order of the calls.
+     */
+    public class Event {
+
+        private final StringBuilder sb = new StringBuilder(128);
+
+        private Event(String type) {
+            sb.append("{\"event\":").append(Json.quote(type)).append(",\"time\":").append(System.currentTimeMillis());
+        }
+
+        public Event put(String key, String value) {
+            sb.append(',').append(Json.quote(key)).append(':').append(Json.quote(value));
+            return this;
+        }
+
+        public Event put(String key, long value) {
+            sb.append(',').append(Json.quote(key)).append(':').append(value);
+            return this;
+        }
+
+        /**
+         * Adds a list of terms with their weights as an array of <code>[term, weight]</code> pairs.
+         */
+        public Event putTerms(String key, String[] terms, float[] weights) {
+            sb.append(',').append(Json.quote(key)).append(":[");
+            for (int i = 0; i < terms.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('[').append(Json.quote(terms[i])).append(',').append(weights[i]).append(']');
+            }
+            sb.append(']');
+            return this;
+        }
+
+        /**
+         * Queues the event for writing. Drops it if the queue is full.
+         */
+        public void log() {
+            if (isEnabled() && !queue.offer(sb.append('}').toString())) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+}
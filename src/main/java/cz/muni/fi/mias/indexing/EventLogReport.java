@@ -0,0 +1,219 @@
+package cz.muni.fi.mias.indexing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Generates an XHTML report of the formulae from the indexing event log. The log is read as a stream: the first pass
+ * keeps only the file offset and weight of every M-term and the totals of the run, the M-terms are then sorted by
+ * their weights and their formulae are read again from the log one at a time. Memory use grows with the number of
+ * logged M-terms by a few bytes per term, not with the size of the log.
+ */
+public class EventLogReport {
+
+    private static final Logger LOG = LogManager.getLogger(EventLogReport.class);
+
+    private final File log;
+    private long[] offsets = new long[1024];
+    private int[] termIndexes = new int[1024];
+    private float[] weights = new float[1024];
+    private int size = 0;
+    private long files = 0;
+    private long documents = 0;
+    private long formulae = 0;
+    private long commits = 0;
+    private long skipped = 0;
+
+    /**
+     * @param log Event log file.
+     */
+    public EventLogReport(File log) {
+        this.log = log;
+    }
+
+    /**
+     * Writes the report.
+     *
+     * @param output Output XHTML file.
+     */
+    public void writeReport(File output) {
+        try {
+            index();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+                write(writer);
+            }
+            LOG.info("Report of {} M-terms written to {}", size, output.getAbsolutePath());
+        } catch (IOException ex) {
+            LOG.error("Cannot write report of event log {}: {}", log.getAbsolutePath(), ex.getMessage());
+        }
+    }
+
+    private void index() throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(log), 1 << 16)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+            long offset = 0;
+            long lineStart = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                offset++;
+                if (b == '\n') {
+                    indexLine(lineStart, line.toString("UTF-8"));
+                    line.reset();
+                    lineStart = offset;
+                } else {
+                    line.write(b);
+                }
+            }
+            if (line.size() > 0) {
+                indexLine(lineStart, line.toString("UTF-8"));
+            }
+        }
+    }
+
+    private void indexLine(long offset, String line) {
+        Map<String, Object> event = parse(line);
+        if (event == null) {
+            return;
+        }
+        Object type = event.get("event");
+        if ("file".equals(type)) {
+            files++;
+        } else if ("document".equals(type)) {
+            documents++;
+        } else if ("commit".equals(type)) {
+            commits++;
+        } else if ("formula".equals(type)) {
+            formulae++;
+            List<?> terms = (List<?>) event.get("terms");
+            for (int i = 0; terms != null && i < terms.size(); i++) {
+                add(offset, i, ((Number) ((List<?>) terms.get(i)).get(1)).floatValue());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> parse(String line) {
+        try {
+            Object result = Json.parse(line);
+            if (result instanceof Map) {
+                return (Map<String, Object>) result;
+            }
+        } catch (IllegalArgumentException | ClassCastException ex) {
+            // a line cut by an interrupted run
+        }
+        skipped++;
+        return null;
+    }
+
+    private void add(long offset, int termIndex, float weight) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            termIndexes = Arrays.copyOf(termIndexes, size * 2);
+            weights = Arrays.copyOf(weights, size * 2);
+        }
+        offsets[size] = offset;
+        termIndexes[size] = termIndex;
+        weights[size] = weight;
+        size++;
+    }
+
+    /**
+     * @return Indexes of the M-terms sorted by descending weight, ties in the order of the log.
+     */
+    private long[] sortByWeight() {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            // bits of non-negative floats are ordered as the floats
+            int bits = Float.floatToIntBits(Math.max(0, weights[i]));
+            keys[i] = ((long) (Integer.MAX_VALUE - bits) << 32) | i;
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private void write(Writer writer) throws IOException {
+        writer.write(HEADER);
+        writer.write(String.format("<p>Files: %d, documents: %d, formulae: %d, M-terms: %d, commits: %d, unreadable lines: %d</p>%n",
+                files, documents, formulae, size, commits, skipped));
+        try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+            long[] sorted = sortByWeight();
+            for (int n = 0; n < sorted.length; n++) {
+                int i = (int) sorted[n];
+                Map<String, Object> event = parse(readLine(raf, offsets[i]));
+                if (event == null) {
+                    continue;
+                }
+                List<?> term = (List<?>) ((List<?>) event.get("terms")).get(termIndexes[i]);
+                String id = event.get("path") + "#" + ((Number) event.get("position")).intValue();
+                String xml = (String) event.get("xml");
+                writer.write(String.format("<h2>Rank %.10f (formula %s, %s)</h2>%n",
+                        weights[i], StringEscapeUtils.escapeXml10(id), StringEscapeUtils.escapeXml10(String.valueOf(event.get("type")))));
+                writer.write(String.format("<p>MTerm: <code>%s</code></p>%n", StringEscapeUtils.escapeXml10(String.valueOf(term.get(0)))));
+                if (xml != null) {
+                    writer.write("<div style=\"font-size: 200%; background-color: #f2f2f2;\">" + xml + "</div>\n");
+                    writer.write("<div class=\"formulaSingleForm\"><h6>(<a class=\"toggle\" href=\"#" + n + "\">show/hide code</a>)</h6>"
+                            + "<div class=\"hideable\"><pre>" + StringEscapeUtils.escapeXml10(xml) + "</pre></div></div>\n");
+                }
+            }
+        }
+        writer.write("</body>\n</html>\n");
+    }
+
+    private static String readLine(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = raf.read(buf)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (buf[i] == '\n') {
+                    line.write(buf, 0, i);
+                    return line.toString("UTF-8");
+                }
+            }
+            line.write(buf, 0, n);
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+            + "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n"
+            + "<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"cs\">\n"
+            + "<head>\n"
+            + "    <meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"/>\n"
+            + "    <title>MIaS Index Report</title>\n"
+            + "    <style type=\"text/css\">\n"
+            + "    h6 a { color: gray; }\n"
+            + "    mi { background-color: #cce5ff; }\n"
+            + "    mo { background-color: #e6ffcc; }\n"
+            + "    mn { background-color: #ffffcc; }\n"
+            + "    </style>\n"
+            + "    <script type=\"text/javascript\" src=\"https://ajax.googleapis.com/ajax/libs/jquery/2.2.0/jquery.min.js\"></script>\n"
+            + "    <script type=\"text/javascript\">\n"
+            + "    $(document).ready(function() {\n"
+            + "        $(\".hideable\").hide();\n"
+            + "        $(\".toggle\").click(function(){\n"
+            + "          $(this).parents(\".formulaSingleForm\").find(\".hideable\").toggle(\"fast\");\n"
+            + "        });\n"
+            + "    });\n"
+            + "    </script>\n"
+            + "</head>\n"
+            + "<body>\n"
+            + "<h1>MIaS Index Report</h1>\n";
+}
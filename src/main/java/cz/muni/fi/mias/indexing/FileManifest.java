@@ -0,0 +1,262 @@
+package cz.muni.fi.mias.indexing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent record of the indexed source files stored next to the index. For every indexed file it keeps its
+ * size, last modification time and optionally the CRC-32 of its content, and the same for every entry of an
+ * indexed zip archive. Indexing uses it to skip unchanged files, re-index changed ones and delete vanished ones.
+ * <p>
+ * The manifest is a text file with one tab separated record per line. A file record
+ * <code>F size modified crc path</code> is followed by the records <code>E size modified crc name</code> of its
+ * archive entries.
+ */
+public class FileManifest {
+
+    private static final Logger LOG = LogManager.getLogger(FileManifest.class);
+    public static final String FILE_NAME = "mias.manifest";
+    public static final long NO_CRC = -1;
+
+    private final File file;
+    private final ConcurrentMap<String, Record> records = new ConcurrentHashMap<>();
+
+    private FileManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the manifest of the index located in the given directory. Returns an empty manifest if the index has
+     * none yet.
+     *
+     * @param indexDir Index directory.
+     * @return Loaded manifest.
+     */
+    public static FileManifest load(File indexDir) {
+        FileManifest manifest = new FileManifest(new File(indexDir, FILE_NAME));
+        if (manifest.file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest.file), StandardCharsets.UTF_8))) {
+                Record record = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t", 5);
+                    if (parts.length != 5) {
+                        continue;
+                    }
+                    Entry entry = new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+                    if (parts[0].equals("F")) {
+                        record = new Record(entry, new HashMap<String, Entry>());
+                        manifest.records.put(parts[4], record);
+                    } else if (record != null) {
+                        record.members.put(parts[4], entry);
+                    }
+                }
+                LOG.info("Loaded manifest of {} indexed files", manifest.records.size());
+            } catch (IOException | NumberFormatException ex) {
+                LOG.error("Cannot read index manifest {}, all files will be indexed", manifest.file.getAbsolutePath());
+                LOG.error(ex);
+                manifest.records.clear();
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the record of an indexed file and marks the file as seen in this run.
+     *
+     * @param path Relative path of the file.
+     * @return Manifest entry of the file or null if the file has not been indexed.
+     */
+    public Entry visit(String path) {
+        Record record = records.get(path);
+        if (record == null) {
+            return null;
+        }
+        record.seen = true;
+        return record.entry;
+    }
+
+    /**
+     * @param path Relative path of an archive.
+     * @return Entries of the archive members keyed by their names.
+     */
+    public Map<String, Entry> getMembers(String path) {
+        Record record = records.get(path);
+        return record == null ? Collections.<String, Entry>emptyMap() : record.members;
+    }
+
+    /**
+     * Records a (re)indexed file.
+     *
+     * @param path Relative path of the file.
+     * @param entry Entry of the file.
+     * @param members Entries of the archive members, empty for plain files.
+     */
+    public void put(String path, Entry entry, Map<String, Entry> members) {
+        Record record = new Record(entry, members);
+        record.seen = true;
+        records.put(path, record);
+    }
+
+    /**
+     * Removes the file and its archive members from the manifest.
+     *
+     * @param path Relative path of the file.
+     */
+    public void remove(String path) {
+        records.remove(path);
+    }
+
+    /**
+     * Removes the matching files and their archive members from the manifest.
+     *
+     * @param matcher Matcher of the relative paths of the files.
+     * @return Number of removed files.
+     */
+    public int removeAll(Predicate<String> matcher) {
+        int before = records.size();
+        records.keySet().removeIf(matcher);
+        return before - records.size();
+    }
+
+    /**
+     * Lists the recorded files under the given relative path which have not been visited in this run.
+     *
+     * @param prefix Relative path of the walked directory or file, empty for the storage root.
+     * @return Relative paths of the vanished files.
+     */
+    public List<String> getUnseen(String prefix) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Record> e : records.entrySet()) {
+            String path = e.getKey();
+            boolean under = prefix.isEmpty() || path.equals(prefix) || path.startsWith(prefix + File.separator);
+            if (under && !e.getValue().seen) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the current state of the manifest to a temporary file. The file replaces the manifest in
+     * {@link #commit()}, which is supposed to be called after the index commit, so the manifest never lists files
+     * missing in the committed index.
+     *
+     * @throws IOException
+     */
+    public void prepareCommit() throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(getTempFile().toPath()), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Record> e : records.entrySet()) {
+                Record record = e.getValue();
+                write(writer, "F", record.entry, e.getKey());
+                for (Map.Entry<String, Entry> member : record.members.entrySet()) {
+                    write(writer, "E", member.getValue(), member.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the manifest with the file written by the last {@link #prepareCommit()}.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        Files.move(getTempFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File getTempFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static void write(Writer writer, String type, Entry entry, String name) throws IOException {
+        writer.write(type + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.crc + "\t" + name + "\n");
+    }
+
+    /**
+     * Computes CRC-32 of the file content, the same checksum zip archives keep for their entries.
+     *
+     * @param file File to be checksummed.
+     * @return CRC-32 of the file.
+     * @throws IOException
+     */
+    public static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[65536];
+        try (InputStream is = new FileInputStream(file)) {
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Size, modification time and checksum of an indexed file or an archive entry.
+     */
+    public static class Entry {
+
+        private final long size;
+        private final long modified;
+        private final long crc;
+
+        public Entry(long size, long modified, long crc) {
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return true if both entries have the same size and modification time
+         */
+        public boolean isUnchanged(Entry other) {
+            return size == other.size && modified == other.modified;
+        }
+
+        /**
+         * @return true if both entries have the same size and checksum, false if any checksum is unknown
+         */
+        public boolean hasSameContent(Entry other) {
+            return crc != NO_CRC && size == other.size && crc == other.crc;
+        }
+    }
+
+    private static class Record {
+
+        private final Entry entry;
+        private final Map<String, Entry> members;
+        private volatile boolean seen;
+
+        Record(Entry entry, Map<String, Entry> members) {
+            this.entry = entry;
+            this.members = members;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.indexing.doc.MTermFingerprint;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Report on the M-term fingerprints of the math fields of an index. For an index of M-term texts, every M-term is
+ * fingerprinted and the fingerprints are sorted to count the exact collisions and the size of the terms a rebuild with
+ * MTERM_FINGERPRINTS would index, so the rebuild can be assessed before it is run. For an index of fingerprints only
+ * the number of distinct fingerprints is known and the collisions are estimated by the birthday bound.
+ */
+public class FingerprintReport {
+
+    private static final String[] FIELDS = {"pmath", "cmath"};
+    private static final String BLOOM_FORMAT = "BloomFilter";
+
+    private final File indexDir;
+
+    /**
+     * @param indexDir Directory of the index.
+     */
+    public FingerprintReport(File indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * @return Text of the report.
+     * @throws IOException
+     */
+    public String report() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Index directory: ").append(indexDir.getAbsolutePath()).append("\n");
+        try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(indexDir))) {
+            for (String field : FIELDS) {
+                Terms terms = MultiFields.getTerms(reader, field);
+                if (terms == null) {
+                    sb.append(field).append(": not indexed\n");
+                } else if (isFingerprinted(reader, field)) {
+                    reportFingerprints(sb, field, terms);
+                } else {
+                    reportTexts(sb, field, terms);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Tells the format of the M-terms of an index from the postings format recorded with its math fields.
+     *
+     * @param reader Reader of an index.
+     * @return true if the math fields hold M-term fingerprints, false if they hold M-term texts, null if the index has
+     * no math field yet
+     */
+    public static Boolean detectFingerprints(IndexReader reader) {
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            for (String field : FIELDS) {
+                FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+                if (info != null && info.isIndexed()) {
+                    return BLOOM_FORMAT.equals(info.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isFingerprinted(DirectoryReader reader, String field) {
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+            if (info != null && BLOOM_FORMAT.equals(info.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void reportFingerprints(StringBuilder sb, String field, Terms terms) throws IOException {
+        TermsEnum te = terms.iterator(null);
+        long count = 0;
+        while (te.next() != null) {
+            count++;
+        }
+        sb.append(field).append(": indexed as fingerprints\n");
+        sb.append("  distinct fingerprints: ").append(count).append(", ").append(count * MTermFingerprint.LENGTH).append(" term bytes\n");
+        sb.append(String.format("  expected colliding M-term pairs: %.6f%n", expectedCollisions(count)));
+    }
+
+    private static void reportTexts(StringBuilder sb, String field, Terms terms) throws IOException {
+        TermsEnum te = terms.iterator(null);
+        long[] fingerprints = new long[1024];
+        int count = 0;
+        long termBytes = 0;
+        BytesRef term;
+        while ((term = te.next()) != null) {
+            if (count == fingerprints.length) {
+                fingerprints = Arrays.copyOf(fingerprints, count * 2);
+            }
+            fingerprints[count++] = MTermFingerprint.fingerprint(term.utf8ToString());
+            termBytes += term.length;
+        }
+        Arrays.sort(fingerprints, 0, count);
+        long collisions = 0;
+        long collidingTerms = 0;
+        for (int i = 1; i < count; i++) {
+            if (fingerprints[i] == fingerprints[i - 1]) {
+                collisions++;
+                collidingTerms += (i == 1 || fingerprints[i - 1] != fingerprints[i - 2]) ? 2 : 1;
+            }
+        }
+        sb.append(field).append(": indexed as M-term texts\n");
+        sb.append("  M-terms: ").append(count).append(", ").append(termBytes).append(" term bytes, average ")
+                .append(String.format("%.2f", count == 0 ? 0 : (double) termBytes / count)).append(" bytes\n");
+        sb.append("  as fingerprints: ").append((long) count * MTermFingerprint.LENGTH).append(" term bytes\n");
+        sb.append("  colliding fingerprints: ").append(collisions).append(" (").append(collidingTerms)
+                .append(" M-terms sharing a fingerprint)\n");
+        sb.append(String.format("  expected colliding M-term pairs: %.6f%n", expectedCollisions(count)));
+    }
+
+    /**
+     * @return Expected number of pairs of n distinct M-terms with the same 64-bit fingerprint.
+     */
+    private static double expectedCollisions(long n) {
+        return (double) n * (n - 1) / Math.pow(2, 65);
+    }
+}
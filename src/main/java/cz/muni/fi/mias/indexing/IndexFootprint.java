@@ -0,0 +1,311 @@
+package cz.muni.fi.mias.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.CompoundFileDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Breakdown of the on-disk size of an index. The files of every segment, including those packed in compound files,
+ * are summed by their Lucene file type. Every field is then analyzed over all segments: the number and length of its
+ * terms, its postings, positions and payload bytes, and its heaviest terms by the number of occurrences. The sizes of
+ * the terms dictionary, postings, positions and payload files are split among the fields in proportion to these
+ * counts, which estimates what each field costs on disk. Stored fields, norms and doc values are reported per file
+ * type only.
+ * <p>
+ * Payloads are counted by reading the positions of every term, so the analysis reads the whole inverted index. Fields
+ * are analyzed in parallel.
+ */
+public class IndexFootprint {
+
+    private static final Map<String, String> FILE_TYPES = new TreeMap<>();
+
+    static {
+        FILE_TYPES.put("si", "segment info");
+        FILE_TYPES.put("fnm", "field infos");
+        FILE_TYPES.put("fdt", "stored fields");
+        FILE_TYPES.put("fdx", "stored fields index");
+        FILE_TYPES.put("tim", "terms dictionary");
+        FILE_TYPES.put("tip", "terms index");
+        FILE_TYPES.put("doc", "postings");
+        FILE_TYPES.put("pos", "positions");
+        FILE_TYPES.put("pay", "payloads and offsets");
+        FILE_TYPES.put("nvd", "norms");
+        FILE_TYPES.put("nvm", "norms metadata");
+        FILE_TYPES.put("dvd", "doc values");
+        FILE_TYPES.put("dvm", "doc values metadata");
+        FILE_TYPES.put("tvd", "term vectors");
+        FILE_TYPES.put("tvx", "term vectors index");
+        FILE_TYPES.put("liv", "live documents");
+        FILE_TYPES.put("del", "deletions");
+        FILE_TYPES.put("cfe", "compound file entries");
+    }
+
+    private final File indexDir;
+    private final int threads;
+    private final int topTerms;
+    private final Map<String, Long> typeSizes = new TreeMap<>();
+    private final List<String> segments = new ArrayList<>();
+    private final Map<String, FieldFootprint> fields = new TreeMap<>();
+
+    /**
+     * @param indexDir Directory of the index.
+     * @param threads Number of fields analyzed at once.
+     * @param topTerms Number of the heaviest terms reported for every field.
+     */
+    public IndexFootprint(File indexDir, int threads, int topTerms) {
+        this.indexDir = indexDir;
+        this.threads = Math.max(1, threads);
+        this.topTerms = topTerms;
+    }
+
+    /**
+     * Analyzes the last commit of the index.
+     *
+     * @throws IOException
+     */
+    public void analyze() throws IOException {
+        try (Directory dir = FSDirectory.open(indexDir)) {
+            analyzeFiles(dir);
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                analyzeFields(reader);
+            }
+        }
+    }
+
+    private void analyzeFiles(Directory dir) throws IOException {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(dir);
+        for (SegmentCommitInfo info : infos) {
+            Map<String, Long> segmentSizes = new TreeMap<>();
+            for (String file : info.files()) {
+                String ext = IndexFileNames.getExtension(file);
+                if (IndexFileNames.COMPOUND_FILE_EXTENSION.equals(ext)) {
+                    try (CompoundFileDirectory cfs = new CompoundFileDirectory(dir, file, IOContext.READONCE, false)) {
+                        for (String inner : cfs.listAll()) {
+                            segmentSizes.merge(IndexFileNames.getExtension(inner), cfs.fileLength(inner), Long::sum);
+                        }
+                    }
+                } else {
+                    segmentSizes.merge(ext, dir.fileLength(file), Long::sum);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(info.info.name).append(" (").append(info.info.getDocCount()).append(" documents, ")
+                    .append(info.getDelCount()).append(" deleted").append(info.info.getUseCompoundFile() ? ", compound" : "")
+                    .append("):");
+            for (Map.Entry<String, Long> e : segmentSizes.entrySet()) {
+                sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+                typeSizes.merge(e.getKey(), e.getValue(), Long::sum);
+            }
+            segments.add(sb.toString());
+        }
+    }
+
+    private void analyzeFields(DirectoryReader reader) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, Future<FieldFootprint>> futures = new TreeMap<>();
+            for (FieldInfo info : MultiFields.getMergedFieldInfos(reader)) {
+                if (info.isIndexed()) {
+                    futures.put(info.name, executor.submit(() -> analyzeField(reader, info)));
+                }
+            }
+            for (Map.Entry<String, Future<FieldFootprint>> e : futures.entrySet()) {
+                fields.put(e.getKey(), e.getValue().get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Analysis of the index interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private FieldFootprint analyzeField(DirectoryReader reader, FieldInfo info) throws IOException {
+        FieldFootprint field = new FieldFootprint(info.hasNorms());
+        Terms terms = MultiFields.getTerms(reader, info.name);
+        if (terms == null) {
+            return field;
+        }
+        boolean payloads = info.hasPayloads();
+        TermsEnum te = terms.iterator(null);
+        DocsAndPositionsEnum positions = null;
+        BytesRef term;
+        while ((term = te.next()) != null) {
+            long occurrences = te.totalTermFreq();
+            long payloadBytes = 0;
+            if (payloads) {
+                positions = te.docsAndPositions(null, positions, DocsAndPositionsEnum.FLAG_PAYLOADS);
+                while (positions.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    for (int i = positions.freq(); i > 0; i--) {
+                        positions.nextPosition();
+                        BytesRef payload = positions.getPayload();
+                        if (payload != null) {
+                            payloadBytes += payload.length;
+                        }
+                    }
+                }
+            }
+            field.add(term, te.docFreq(), occurrences, payloadBytes, topTerms);
+        }
+        return field;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Index directory: ").append(indexDir.getAbsolutePath()).append("\n");
+        long total = 0;
+        for (long size : typeSizes.values()) {
+            total += size;
+        }
+        sb.append("Size of the segments: ").append(total).append(" bytes\n");
+        sb.append("Size by file type:\n");
+        for (Map.Entry<String, Long> e : typeSizes.entrySet()) {
+            String type = FILE_TYPES.get(e.getKey());
+            sb.append(String.format("  %-4s %-22s %14d bytes %6.2f %%%n", e.getKey(), type == null ? "" : type, e.getValue(),
+                    total == 0 ? 0 : 100.0 * e.getValue() / total));
+        }
+        sb.append("Segments:\n");
+        for (String segment : segments) {
+            sb.append("  ").append(segment).append("\n");
+        }
+
+        long termBytes = 0;
+        long postings = 0;
+        long positions = 0;
+        long payloadBytes = 0;
+        for (FieldFootprint f : fields.values()) {
+            termBytes += f.termBytes;
+            postings += f.postings;
+            positions += Math.max(0, f.positions);
+            payloadBytes += f.payloadBytes;
+        }
+        long termsSize = size("tim") + size("tip");
+        sb.append("Fields:\n");
+        for (Map.Entry<String, FieldFootprint> e : fields.entrySet()) {
+            FieldFootprint f = e.getValue();
+            long estimate = share(termsSize, f.termBytes, termBytes) + share(size("doc"), f.postings, postings)
+                    + share(size("pos"), Math.max(0, f.positions), positions) + share(size("pay"), f.payloadBytes, payloadBytes);
+            sb.append("  ").append(e.getKey()).append(": ~").append(estimate).append(" bytes of terms and postings")
+                    .append(f.norms ? ", norms" : "").append("\n");
+            sb.append(String.format("    %d terms, average length %.2f bytes, %.2f bytes per occurrence%n",
+                    f.terms, f.terms == 0 ? 0 : (double) f.termBytes / f.terms,
+                    f.positions <= 0 ? 0 : (double) f.occurrenceBytes / f.positions));
+            sb.append("    ").append(f.postings).append(" postings, ")
+                    .append(f.positions < 0 ? "-" : String.valueOf(f.positions)).append(" positions, ")
+                    .append(f.payloadBytes).append(" payload bytes\n");
+            List<TermFootprint> top = new ArrayList<>(f.top);
+            top.sort((a, b) -> Long.compare(b.occurrences, a.occurrences));
+            for (TermFootprint t : top) {
+                sb.append("      ").append(t.occurrences).append(" x ").append(t.term).append(" (").append(t.docFreq)
+                        .append(" documents, ").append(t.payloadBytes).append(" payload bytes)\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private long size(String type) {
+        Long size = typeSizes.get(type);
+        return size == null ? 0 : size;
+    }
+
+    private static long share(long size, long part, long whole) {
+        return whole == 0 ? 0 : Math.round((double) size * part / whole);
+    }
+
+    /**
+     * Inverted index statistics of a field over all segments.
+     */
+    private static class FieldFootprint {
+
+        private final boolean norms;
+        private final PriorityQueue<TermFootprint> top = new PriorityQueue<>((a, b) -> Long.compare(a.occurrences, b.occurrences));
+        private long terms;
+        private long termBytes;
+        private long occurrenceBytes;
+        private long postings;
+        private long positions;
+        private long payloadBytes;
+
+        private FieldFootprint(boolean norms) {
+            this.norms = norms;
+        }
+
+        private void add(BytesRef term, int docFreq, long occurrences, long payloads, int topTerms) {
+            terms++;
+            termBytes += term.length;
+            postings += docFreq;
+            if (occurrences < 0 || positions < 0) {
+                positions = -1;
+            } else {
+                positions += occurrences;
+                occurrenceBytes += occurrences * term.length;
+            }
+            payloadBytes += payloads;
+            // fields indexed without frequencies are ranked by their postings
+            long weight = occurrences < 0 ? docFreq : occurrences;
+            if (topTerms > 0 && (top.size() < topTerms || weight > top.peek().occurrences)) {
+                top.add(new TermFootprint(termText(term), docFreq, weight, payloads));
+                if (top.size() > topTerms) {
+                    top.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Text of the term, or its bytes in hex if it is binary, e.g. a numeric term.
+     */
+    private static String termText(BytesRef term) {
+        for (int i = term.offset; i < term.offset + term.length; i++) {
+            if ((term.bytes[i] & 0xff) < 0x20) {
+                return term.toString();
+            }
+        }
+        return term.utf8ToString();
+    }
+
+    private static class TermFootprint {
+
+        private final String term;
+        private final int docFreq;
+        private final long occurrences;
+        private final long payloadBytes;
+
+        private TermFootprint(String term, int docFreq, long occurrences, long payloadBytes) {
+            this.term = term;
+            this.docFreq = docFreq;
+            this.occurrences = occurrences;
+            this.payloadBytes = payloadBytes;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package cz.muni.fi.mias.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Statistics of an index computed without loading the stored documents. The sizes, modification dates and formula
+ * counts are summed from the <code>filesize</code>, <code>modified</code> and <code>formulae</code> doc values and
+ * the term statistics are read from the terms dictionaries, segment by segment in parallel. Deleted documents are
+ * skipped in the sums; the term statistics of Lucene still count them until the segments are merged. Segments
+ * written before the doc values were indexed fall back to the stored <code>filesize</code> field.
+ */
+public class IndexStats {
+
+    private final File indexDir;
+    private final int threads;
+
+    private long liveDocs;
+    private long deletedDocs;
+    private long fileSize;
+    private long formulae;
+    private long minModified = Long.MAX_VALUE;
+    private long maxModified = Long.MIN_VALUE;
+    private int segments;
+    private int storedFallbackSegments;
+    private int noFormulaSegments;
+    private final Map<String, FieldStats> fields = new TreeMap<>();
+    private final Map<String, Long> fileSizes = new TreeMap<>();
+
+    /**
+     * @param indexDir Directory of the index.
+     * @param threads Number of segments processed at once.
+     */
+    public IndexStats(File indexDir, int threads) {
+        this.indexDir = indexDir;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Computes the statistics of all segments of the reader.
+     *
+     * @param reader Reader of the index.
+     * @throws IOException
+     */
+    public void compute(DirectoryReader reader) throws IOException {
+        List<AtomicReaderContext> leaves = reader.leaves();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, leaves.size())));
+        try {
+            List<Future<IndexStats>> futures = new ArrayList<>();
+            for (AtomicReaderContext leaf : leaves) {
+                futures.add(executor.submit(() -> {
+                    IndexStats segment = new IndexStats(indexDir, 1);
+                    segment.computeSegment(leaf.reader());
+                    return segment;
+                }));
+            }
+            for (Future<IndexStats> future : futures) {
+                add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Computing of index statistics interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        File[] files = indexDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                int dot = name.lastIndexOf('.');
+                String ext = dot < 0 ? name : name.substring(dot + 1);
+                fileSizes.merge(ext, f.length(), Long::sum);
+            }
+        }
+    }
+
+    private void computeSegment(AtomicReader reader) throws IOException {
+        segments = 1;
+        liveDocs = reader.numDocs();
+        deletedDocs = reader.numDeletedDocs();
+        Bits live = reader.getLiveDocs();
+        int maxDoc = reader.maxDoc();
+
+        NumericDocValues sizes = reader.getNumericDocValues("filesize");
+        if (sizes != null) {
+            for (int i = 0; i < maxDoc; i++) {
+                if (live == null || live.get(i)) {
+                    fileSize += sizes.get(i);
+                }
+            }
+        } else if (reader.getFieldInfos().fieldInfo("filesize") != null) {
+            storedFallbackSegments = 1;
+            for (int i = 0; i < maxDoc; i++) {
+                if (live == null || live.get(i)) {
+                    Document doc = reader.document(i, Collections.singleton("filesize"));
+                    IndexableField size = doc.getField("filesize");
+                    if (size != null) {
+                        fileSize += size.numericValue() != null ? size.numericValue().longValue() : Long.parseLong(size.stringValue());
+                    }
+                }
+            }
+        }
+
+        NumericDocValues modified = reader.getNumericDocValues("modified");
+        if (modified != null) {
+            Bits withModified = reader.getDocsWithField("modified");
+            for (int i = 0; i < maxDoc; i++) {
+                if ((live == null || live.get(i)) && withModified.get(i)) {
+                    long time = modified.get(i);
+                    minModified = Math.min(minModified, time);
+                    maxModified = Math.max(maxModified, time);
+                }
+            }
+        }
+
+        NumericDocValues counts = reader.getNumericDocValues("formulae");
+        if (counts != null) {
+            for (int i = 0; i < maxDoc; i++) {
+                if (live == null || live.get(i)) {
+                    formulae += counts.get(i);
+                }
+            }
+        } else if (maxDoc > 0) {
+            noFormulaSegments = 1;
+        }
+
+        Fields segmentFields = reader.fields();
+        if (segmentFields != null) {
+            for (String field : segmentFields) {
+                Terms terms = segmentFields.terms(field);
+                if (terms != null) {
+                    fields.computeIfAbsent(field, f -> new FieldStats()).add(terms);
+                }
+            }
+        }
+    }
+
+    private void add(IndexStats other) {
+        segments += other.segments;
+        liveDocs += other.liveDocs;
+        deletedDocs += other.deletedDocs;
+        fileSize += other.fileSize;
+        formulae += other.formulae;
+        minModified = Math.min(minModified, other.minModified);
+        maxModified = Math.max(maxModified, other.maxModified);
+        storedFallbackSegments += other.storedFallbackSegments;
+        noFormulaSegments += other.noFormulaSegments;
+        for (Map.Entry<String, FieldStats> e : other.fields.entrySet()) {
+            fields.computeIfAbsent(e.getKey(), f -> new FieldStats()).add(e.getValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Index directory: ").append(indexDir.getAbsolutePath()).append("\n");
+        sb.append("Number of segments: ").append(segments).append("\n");
+        sb.append("Number of indexed documents: ").append(liveDocs).append("\n");
+        sb.append("Number of deleted documents: ").append(deletedDocs).append("\n");
+        sb.append("Number of formulae: ").append(formulae);
+        if (noFormulaSegments > 0) {
+            sb.append(" (").append(noFormulaSegments).append(" segments without formula counts)");
+        }
+        sb.append("\n");
+        long indexSize = 0;
+        for (long size : fileSizes.values()) {
+            indexSize += size;
+        }
+        sb.append("Index size: ").append(indexSize).append(" bytes \n");
+        for (Map.Entry<String, Long> e : fileSizes.entrySet()) {
+            sb.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append(" bytes\n");
+        }
+        sb.append("Approximated size of indexed files: ").append(fileSize).append(" bytes \n");
+        if (storedFallbackSegments > 0) {
+            sb.append("  (").append(storedFallbackSegments).append(" segments without doc values read from stored fields)\n");
+        }
+        if (minModified <= maxModified) {
+            sb.append("Files modified between ").append(DateTools.timeToString(minModified, DateTools.Resolution.MINUTE))
+                    .append(" and ").append(DateTools.timeToString(maxModified, DateTools.Resolution.MINUTE)).append("\n");
+        }
+        sb.append("Fields (terms summed over segments, postings, positions, documents):\n");
+        for (Map.Entry<String, FieldStats> e : fields.entrySet()) {
+            FieldStats f = e.getValue();
+            sb.append("  ").append(e.getKey()).append(": ").append(f.terms).append(" terms, ")
+                    .append(f.postings).append(" postings, ")
+                    .append(f.positions < 0 ? "-" : String.valueOf(f.positions)).append(" positions, ")
+                    .append(f.docs).append(" documents\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Term statistics of a field, -1 where a segment does not provide the statistic.
+     */
+    private static class FieldStats {
+
+        private long terms;
+        private long postings;
+        private long positions;
+        private long docs;
+
+        private void add(Terms t) throws IOException {
+            add(t.size(), t.getSumDocFreq(), t.getSumTotalTermFreq(), t.getDocCount());
+        }
+
+        private void add(FieldStats other) {
+            add(other.terms, other.postings, other.positions, other.docs);
+        }
+
+        private void add(long terms, long postings, long positions, long docs) {
+            this.terms = sum(this.terms, terms);
+            this.postings = sum(this.postings, postings);
+            this.positions = sum(this.positions, positions);
+            this.docs = sum(this.docs, docs);
+        }
+
+        private static long sum(long a, long b) {
+            return a < 0 || b < 0 ? -1 : a + b;
+        }
+    }
+}
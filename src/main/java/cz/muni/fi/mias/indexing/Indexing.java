@@ -1,32 +1,57 @@
 package cz.muni.fi.mias.indexing;
 
+import cz.muni.fi.mias.MIaSUtils;
 import cz.muni.fi.mias.PayloadSimilarity;
 import cz.muni.fi.mias.Settings;
-import cz.muni.fi.mias.indexing.doc.FileExtDocumentHandler;
 import cz.muni.fi.mias.indexing.doc.FolderVisitor;
+import cz.muni.fi.mias.indexing.doc.FormulaCache;
 import cz.muni.fi.mias.indexing.doc.RecursiveFileVisitor;
 import cz.muni.fi.mias.math.MathTokenizer;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.bloom.BloomFilteringPostingsFormat;
+import org.apache.lucene.codecs.lucene410.Lucene410Codec;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.Version;
 
 /**
@@ -39,15 +64,28 @@ import org.apache.lucene.util.Version;
 public class Indexing {
 
     private static final Logger LOG = LogManager.getLogger(Indexing.class);
+    private static final int DELETE_BATCH_SIZE = 1024;
+    private static final String OPTIMIZE_DELETES = "deletes";
+    private static final String DELETE_GLOB = "glob:";
+    private static final String DELETE_IDS = "ids:";
+
+    static {
+        MIaSUtils.useJdkXmlFactories();
+    }
     
     private File indexDir;
     private Analyzer analyzer = new StandardAnalyzer();
     private long docLimit = Settings.getDocLimit();
     private long count = 0;
-    private long progress = 0;
-    private long fileProgress = 0;
+    private IndexingPipeline pipeline;
+    private FileManifest manifest;
+    private final List<Query> shardDeletes = new ArrayList<>();
+    private Checkpoint checkpoint;
+    private long nextOrdinal = 0;
+    private final CommitPolicy commitPolicy = CommitPolicy.fromSettings();
     private String storage;
     private long startTime;
+    private NrtIndex nrtIndex;
 
     /**
      * Constructor creates Indexing instance. Directory with the index is taken from the Settings.
@@ -57,6 +95,17 @@ public class Indexing {
         this.indexDir = new File(Settings.getIndexDir());
     }
 
+    /**
+     * Constructor creates Indexing instance adding and deleting documents through the IndexWriter of the shared
+     * index, so the changes become searchable without a commit. The index is always built as a single index.
+     *
+     * @param nrtIndex Index shared with searching.
+     */
+    public Indexing(NrtIndex nrtIndex) {
+        this();
+        this.nrtIndex = nrtIndex;
+    }
+
     /**
      * Indexes files located in given input path.
      * @param path Path to the documents directory. Can be a single file as well.
@@ -64,6 +113,49 @@ public class Indexing {
      * the files will be index with.
      */
     public void indexFiles(String path, String rootDir) {
+        indexFiles(path, rootDir, new Checkpoint(new File(path).getAbsolutePath(), rootDir));
+    }
+
+    /**
+     * Resumes the indexing run interrupted after the last commit of the index. The files completed before the
+     * commit are skipped without being parsed again. The input path and the root directory are taken from the
+     * checkpoint stored with the commit, the files are expected to be discovered in the same order.
+     */
+    public void resume() {
+        File checkpointDir = indexDir;
+        if (Settings.getShards() > 1) {
+            // the shards are committed one by one, the last one has the oldest checkpoint
+            checkpointDir = new File(Settings.getShardDir(), "shard-" + (Settings.getShards() - 1));
+        }
+        Map<String, String> commitData;
+        try {
+            if (checkpointDir != indexDir && !DirectoryReader.indexExists(FSDirectory.open(checkpointDir))) {
+                // merged shards are deleted, the finished checkpoint is in the commit of the merged index
+                checkpointDir = indexDir;
+            }
+        } catch (IOException ex) {
+            checkpointDir = indexDir;
+        }
+        try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(checkpointDir))) {
+            commitData = reader.getIndexCommit().getUserData();
+        } catch (IOException ex) {
+            LOG.error("Cannot read the last commit of index {}", checkpointDir.getAbsolutePath());
+            LOG.error(ex);
+            return;
+        }
+        Checkpoint last = Checkpoint.fromCommitData(commitData);
+        if (last == null || last.getInput() == null) {
+            LOG.error("The last commit of index {} has no checkpoint to resume from.", checkpointDir.getAbsolutePath());
+        } else if (Checkpoint.isFinished(commitData)) {
+            LOG.info("The last indexing run of {} finished, there is nothing to resume.", last.getInput());
+        } else {
+            LOG.info("Resuming indexing of {}", last.getInput());
+            indexFiles(last.getInput(), last.getRoot(), last);
+        }
+    }
+
+    private void indexFiles(String path, String rootDir, Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
         storage = rootDir;
         if (!storage.endsWith(File.separator)) {
             storage += File.separator;
@@ -75,114 +167,387 @@ public class Indexing {
         }
         try {
             startTime = System.currentTimeMillis();
-            IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_45, analyzer);
-            PayloadSimilarity ps = new PayloadSimilarity();
-            ps.setDiscountOverlaps(false);
-            config.setSimilarity(ps);
-            config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
-            try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config))
-            {
-                LOG.info("Getting list of documents to index.");
-                List<File> files = getDocs(docDir);
-                countFiles(files);
-                LOG.info("Number of documents to index is {}",count);
-                indexDocsThreaded(files, writer);
+            manifest = FileManifest.load(indexDir);
+            int shards = Settings.getShards();
+            if (shards > 1 && nrtIndex == null) {
+                indexShards(docDir, shards);
+            } else {
+                if (nrtIndex == null) {
+                    checkMathFormat(FSDirectory.open(indexDir));
+                }
+                IndexWriter writer = nrtIndex != null ? nrtIndex.getWriter()
+                        : new IndexWriter(commitPolicy.wrap(FSDirectory.open(indexDir)), createConfig());
+                try {
+                    boolean finished = indexDocsThreaded(docDir, Collections.singletonList(writer));
+                    long commitStart = System.nanoTime();
+                    manifest.prepareCommit();
+                    writer.setCommitData(checkpoint.getCommitData(finished));
+                    writer.commit();
+                    manifest.commit();
+                    IndexingMetrics.getInstance().record(IndexingMetrics.Stage.COMMIT, commitStart);
+                } finally {
+                    if (nrtIndex == null) {
+                        writer.close();
+                    }
+                }
+                if (nrtIndex != null) {
+                    nrtIndex.refresh();
+                }
             }
         } catch (IOException ex) {
             LOG.error(ex);
+        } finally {
+            IndexingMetrics.getInstance().stop();
         }
     }
 
-    private List<File> getDocs(File startPath) throws IOException {
-        if(!startPath.canRead())
-        {
-            throw new IllegalArgumentException("Given path is not a folder. # "+startPath);
+    private IndexWriterConfig createConfig() {
+        return createConfig(analyzer);
+    }
+
+    /**
+     * Refuses to write M-terms of one format into an index holding the other one, the queries would not match either
+     * half of it.
+     *
+     * @param dir Directory of an index.
+     * @throws IOException if the M-terms of the index are not in the format set by MTERM_FINGERPRINTS
+     */
+    static void checkMathFormat(Directory dir) throws IOException {
+        if (!DirectoryReader.indexExists(dir)) {
+            return;
         }
-        else
-        {
-            RecursiveFileVisitor fileVisitor = new FolderVisitor(docLimit);
-            Files.walkFileTree(startPath.toPath(), fileVisitor);
-            // TODO remove later
-            List<File> result = new ArrayList<>(fileVisitor.getVisitedPaths().size());
-            for(Path p : fileVisitor.getVisitedPaths())
-            {
-                result.add(p.toFile());
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            Boolean fingerprints = FingerprintReport.detectFingerprints(reader);
+            if (fingerprints != null && fingerprints != Settings.getMTermFingerprints()) {
+                throw new IOException("Index " + dir + " holds M-terms " + (fingerprints ? "fingerprints" : "texts")
+                        + ", set MTERM_FINGERPRINTS to " + (fingerprints ? "TRUE" : "FALSE") + " or rebuild it with -overwrite");
+            }
+        }
+    }
+
+    /**
+     * @param analyzer Analyzer of the documents.
+     * @return Configuration of the IndexWriters of the indexing.
+     */
+    static IndexWriterConfig createConfig(Analyzer analyzer) {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_45, analyzer);
+        PayloadSimilarity ps = new PayloadSimilarity();
+        ps.setDiscountOverlaps(false);
+        config.setSimilarity(ps);
+        config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        config.setRAMBufferSizeMB(Settings.getRamBufferSize());
+        config.setMergeScheduler(configureMergeScheduler(new ConcurrentMergeScheduler()));
+        if (Settings.getMTermFingerprints()) {
+            config.setCodec(new FingerprintCodec());
+        }
+        return config;
+    }
+
+    /**
+     * Codec filtering the lookups of the fingerprinted M-terms by a bloom filter per segment. The bloom filtering
+     * postings format is resolved by its name when the index is read, so any reader with lucene-codecs reads it.
+     */
+    private static class FingerprintCodec extends Lucene410Codec {
+
+        private final PostingsFormat mathFormat = new BloomFilteringPostingsFormat(PostingsFormat.forName("Lucene41"));
+
+        @Override
+        public PostingsFormat getPostingsFormatForField(String field) {
+            if (field.equals("pmath") || field.equals("cmath")) {
+                return mathFormat;
+            }
+            return super.getPostingsFormatForField(field);
+        }
+    }
+
+    /**
+     * Limits the merge threads and pending merges of the scheduler by the Settings.
+     */
+    private static ConcurrentMergeScheduler configureMergeScheduler(ConcurrentMergeScheduler mergeScheduler) {
+        int mergeThreads = Settings.getMergeThreads();
+        int maxMerges = Settings.getMaxMerges();
+        if (mergeThreads > 0 || maxMerges > 0) {
+            if (mergeThreads <= 0) {
+                mergeThreads = Math.min(mergeScheduler.getMaxThreadCount(), maxMerges);
+            }
+            if (maxMerges <= 0) {
+                maxMerges = mergeThreads + 5;
             }
-            
-            return result;
+            mergeScheduler.setMaxMergesAndThreads(Math.max(maxMerges, mergeThreads), mergeThreads);
         }
+        return mergeScheduler;
     }
 
-    private void indexDocsThreaded(List<File> files, IndexWriter writer) {
+    /**
+     * Indexes the input into the given number of independent shard indexes, each with its own IndexWriter, RAM
+     * buffer and merge scheduler. The shards are then merged into the index directory, unless the Settings say
+     * to keep them separate.
+     */
+    private void indexShards(File docDir, int shards) throws IOException {
+        File shardRoot = new File(Settings.getShardDir());
+        File[] shardDirs = new File[shards];
+        List<IndexWriter> writers = new ArrayList<>(shards);
         try {
-            Iterator<File> it = files.iterator();
-            ExecutorService executor = Executors.newFixedThreadPool(Settings.getNumThreads());
-            Future[] tasks = new Future[Settings.getNumThreads()];
-            int running = 0;
-
-            while (it.hasNext() || running > 0) {
-                for (int i = 0; i < tasks.length; i++) {
-                    if (tasks[i] == null && it.hasNext()) {
-                        File f = it.next();
-                        String path = resolvePath(f);
-                        Callable callable = new FileExtDocumentHandler(f, path);
-                        FutureTask ft = new FutureTask(callable);
-                        tasks[i] = ft;
-                        executor.execute(ft);
-                        running++;
-                    } else if (tasks[i] != null && tasks[i].isDone()) {
-                        List<Document> docs = (List<Document>) tasks[i].get();
-                        running--;
-                        tasks[i] = null;
-                        for (Document doc : docs) {
-                            if (doc != null) {
-                                if (progress % 10000 == 0) {
-                                    printTimes();
-                                    writer.commit();
-                                }
-                                try {
-                                    LOG.info("adding to index {} docId={}",doc.get("path"),doc.get("id"));
-                                    writer.updateDocument(new Term("id", doc.get("id")), doc);
-                                    LOG.info("Documents indexed: {}", ++progress);
-                                } catch (Exception ex) {
-                                    LOG.fatal("Document '{}' indexing failed: {}",doc.get("path"),ex.getMessage());
-                                    LOG.fatal(ex.getStackTrace());
-                                }
-                            }
-                        }
-                        LOG.info("File progress: {} of {} done...",++fileProgress, count);
-                    }
+            for (int i = 0; i < shards; i++) {
+                shardDirs[i] = new File(shardRoot, "shard-" + i);
+                checkMathFormat(FSDirectory.open(shardDirs[i]));
+                writers.add(new IndexWriter(commitPolicy.wrap(FSDirectory.open(shardDirs[i])), createConfig()));
+            }
+            boolean finished = indexDocsThreaded(docDir, writers);
+            for (IndexWriter writer : writers) {
+                writer.setCommitData(checkpoint.getCommitData(finished));
+            }
+        } finally {
+            IOUtils.close(writers);
+        }
+        if (Settings.getMergeShards()) {
+            String[] shardPaths = new String[shards];
+            for (int i = 0; i < shards; i++) {
+                shardPaths[i] = shardDirs[i].getPath();
+            }
+            if (mergeShards(shardPaths, shardDeletes)) {
+                deleteDir(shardRoot);
+            }
+        } else {
+            manifest.prepareCommit();
+            manifest.commit();
+            LOG.info("Index shards left in {}", shardRoot.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Merges independently built indexes into the current index. Documents of the current index whose ids occur
+     * in the merged indexes are replaced.
+     *
+     * @param shardPaths Paths to the directories of the indexes to be merged.
+     * @return true if the merge succeeded
+     */
+    public boolean mergeShards(String[] shardPaths) {
+        return mergeShards(shardPaths, Collections.<Query>emptyList());
+    }
+
+    private boolean mergeShards(String[] shardPaths, List<Query> deletes) {
+        long start = System.currentTimeMillis();
+        Directory[] shards = new Directory[shardPaths.length];
+        try {
+            checkMathFormat(FSDirectory.open(indexDir));
+            for (String shardPath : shardPaths) {
+                checkMathFormat(FSDirectory.open(new File(shardPath)));
+            }
+        } catch (IOException ex) {
+            LOG.error(ex.getMessage());
+            return false;
+        }
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), createConfig())) {
+            // outdated documents of changed and vanished files
+            writer.deleteDocuments(deletes.toArray(new Query[deletes.size()]));
+            for (int i = 0; i < shardPaths.length; i++) {
+                shards[i] = FSDirectory.open(new File(shardPaths[i]));
+                if (writer.maxDoc() > 0) {
+                    deleteExistingIds(writer, shards[i]);
                 }
             }
+            LOG.info("Merging {} index shards into {}", shards.length, indexDir.getAbsolutePath());
+            writer.addIndexes(shards);
+            if (manifest != null) {
+                manifest.prepareCommit();
+            }
+            if (checkpoint != null) {
+                writer.setCommitData(checkpoint.getCommitData(true));
+            }
+            writer.commit();
+            if (manifest != null) {
+                manifest.commit();
+            }
+            LOG.info("Merging time: {} ms", System.currentTimeMillis() - start);
+            return true;
+        } catch (IOException ex) {
+            LOG.error(ex);
+            return false;
+        } finally {
+            IOUtils.closeWhileHandlingException(shards);
+        }
+    }
+
+    private void deleteExistingIds(IndexWriter writer, Directory shard) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(shard)) {
+            Terms terms = MultiFields.getTerms(reader, "id");
+            if (terms == null) {
+                return;
+            }
+            TermsEnum te = terms.iterator(null);
+            List<Term> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                batch.add(new Term("id", BytesRef.deepCopyOf(term)));
+                if (batch.size() == DELETE_BATCH_SIZE) {
+                    writer.deleteDocuments(batch.toArray(new Term[batch.size()]));
+                    batch.clear();
+                }
+            }
+            writer.deleteDocuments(batch.toArray(new Term[batch.size()]));
+        }
+    }
+
+    /**
+     * Walks the input path and submits the found files to the indexing pipeline as they are visited, so the
+     * walk and the indexing overlap. The number of files to index is known only after the walk finishes.
+     *
+     * @return true if all the files were processed
+     */
+    private boolean indexDocsThreaded(File startPath, List<IndexWriter> writers) {
+        IndexingMetrics.getInstance().start();
+        EventLog events = EventLog.open();
+        SourceStore.open();
+        events.event("run").put("input", startPath.getAbsolutePath()).log();
+        long runStart = System.currentTimeMillis();
+        pipeline = new IndexingPipeline(writers, this::printTimes);
+        pipeline.setManifest(manifest, writers.size() == 1);
+        pipeline.setCheckpoint(checkpoint);
+        pipeline.setCommitPolicy(commitPolicy);
+        try {
+            pipeline.start();
+            LOG.info("Indexing documents while walking {}.", startPath);
+            RecursiveFileVisitor fileVisitor = new FolderVisitor(docLimit, this::submit);
+            boolean complete = true;
+            try {
+                Files.walkFileTree(startPath.toPath(), fileVisitor);
+            } catch (IOException | RuntimeException ex) {
+                LOG.fatal(ex);
+                complete = false;
+            } finally {
+                // the worker threads stop only when the pipeline is finished, whatever ended the walk
+                count = fileVisitor.getVisitedCount();
+                pipeline.setCount(count);
+                LOG.info("Number of documents to index is {}", count);
+                pipeline.finish();
+            }
+            FormulaCache cache = FormulaCache.getInstance();
+            if (cache != null) {
+                cache.save();
+            }
+            shardDeletes.addAll(pipeline.getDeletes());
+            if (Settings.getUpdateFiles() && complete && (docLimit < 0 || count < docLimit)) {
+                deleteVanished(startPath, writers);
+            }
             printTimes();
-            executor.shutdown();
-        } catch (IOException | InterruptedException | ExecutionException ex) {
+            return complete;
+        } catch (InterruptedException | IOException ex) {
             LOG.fatal(ex);
+            return false;
+        } finally {
+            events.event("end").put("files", count).put("documents", pipeline.getProgress())
+                    .put("millis", System.currentTimeMillis() - runStart).log();
+            events.close();
+            SourceStore.close();
+        }
+    }
+
+    /**
+     * Deletes the documents of the files recorded in the manifest under the walked path which no longer exist.
+     */
+    private void deleteVanished(File startPath, List<IndexWriter> writers) throws IOException {
+        String canonicalPath = startPath.getCanonicalPath();
+        String prefix = canonicalPath.length() < storage.length() ? "" : canonicalPath.substring(storage.length());
+        for (String path : manifest.getUnseen(prefix)) {
+            LOG.info("Deleting vanished file {}.", path);
+            Query query = new TermQuery(new Term("path", path));
+            for (IndexWriter writer : writers) {
+                writer.deleteDocuments(query);
+            }
+            shardDeletes.add(query);
+            manifest.remove(path);
+        }
+    }
+
+    private void submit(Path p) {
+        File f = p.toFile();
+        long ordinal = nextOrdinal++;
+        try {
+            String path = resolvePath(f);
+            if (checkpoint.isCompleted(ordinal)) {
+                LOG.debug("Skipping file {} completed before the checkpoint", path);
+                manifest.visit(path);
+            } else {
+                pipeline.submit(f, path, ordinal);
+            }
+        } catch (IOException ex) {
+            LOG.error("Cannot resolve path of file {}", f.getAbsolutePath());
+            LOG.error(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * Optimizes the index.
      */
-    public void optimize() {        
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, analyzer);
-        config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());  
-        // TODO what do we measure here ? time of optimization or optimiziation
-        // and index opening aswell
+    public void optimize() {
+        optimize(null);
+    }
+
+    /**
+     * Optimizes the index by merging its segments, which also expunges the deleted documents. The merges run
+     * concurrently, limited by MERGE_THREADS and MAX_MERGES, and every merge is logged when it finishes.
+     *
+     * @param mode Maximum number of segments left, 1 if null, or <code>deletes</code> to merge only the segments
+     * with more than MERGE_DELETES_PCT percent of deleted documents.
+     */
+    public void optimize(String mode) {
+        boolean deletesOnly = OPTIMIZE_DELETES.equals(mode);
+        int maxSegments = mode == null || deletesOnly ? 1 : Integer.parseInt(mode);
+        if (maxSegments < 1) {
+            throw new NumberFormatException("The maximum number of segments must be positive: " + mode);
+        }
+        IndexWriterConfig config = createConfig();
+        config.setMergeScheduler(configureMergeScheduler(new ProgressMergeScheduler()));
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setForceMergeDeletesPctAllowed(Settings.getMergeDeletesPct());
+        config.setMergePolicy(mergePolicy);
         startTime = System.currentTimeMillis();
-        try(IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)){
-//            writer.optimize();    
-            LOG.info("Optimizing time: {} ms",System.currentTimeMillis()-startTime);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)) {
+            LOG.info("Optimizing index with {} documents, {} deleted, in {} segments",
+                    writer.numDocs(), writer.maxDoc() - writer.numDocs(), countSegments());
+            if (deletesOnly) {
+                writer.forceMergeDeletes();
+            } else {
+                writer.forceMerge(maxSegments);
+            }
+            writer.commit();
+            LOG.info("Index optimized to {} documents, {} deleted, in {} segments",
+                    writer.numDocs(), writer.maxDoc() - writer.numDocs(), countSegments());
+            LOG.info("Optimizing time: {} ms", System.currentTimeMillis() - startTime);
         } catch (IOException e) {
             LOG.error(e.getMessage());
         }
     }
 
+    private int countSegments() throws IOException {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(FSDirectory.open(indexDir));
+        return infos.size();
+    }
+
+    /**
+     * Merge scheduler logging every finished merge with its size and time.
+     */
+    private static class ProgressMergeScheduler extends ConcurrentMergeScheduler {
+
+        @Override
+        protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+            long start = System.currentTimeMillis();
+            super.doMerge(merge);
+            LOG.info("Merged {} segments with {} documents ({} MB) in {} ms", merge.segments.size(), merge.totalDocCount,
+                    merge.estimatedMergeBytes / (1024 * 1024), System.currentTimeMillis() - start);
+        }
+    }
+
     /**
-     * Deletes whole current index directory
+     * Deletes whole current index directory together with the index shards directory.
      */
     public void deleteIndexDir() {
         deleteDir(indexDir);
+        deleteDir(new File(Settings.getShardDir()));
     }
 
     private void deleteDir(File f) {
@@ -204,74 +569,185 @@ public class Indexing {
     }
 
     /**
-     * Deletes files located in given path from the index
+     * Deletes documents from the index by query deletes applied in a single IndexWriter session. The documents are
+     * selected by the paths they were indexed with, so documents of already removed files can be deleted as well.
+     * <ul>
+     *  <li><code>path</code>: documents of the file or of all the files under the directory with the relative
+     *  path, including all entries of an archive and all formula documents</li>
+     *  <li><code>glob:pattern</code>: documents of the files whose relative paths match the pattern, where
+     *  <code>*</code> matches any string including path separators and <code>?</code> any character</li>
+     *  <li><code>ids:file</code>: documents with the ids listed one per line in the file, together with their
+     *  formula documents, found in a single pass over the sorted ids and the terms of the id field</li>
+     * </ul>
+     * The files matching a path or a glob are removed from the manifest too, so a later update indexes them again.
      *
-     * @param path Path of the files to be deleted
+     * @param spec Relative path, glob or file with ids of the documents to be deleted.
      */
-    public void deleteFiles(String path) {
-        final File docDir = new File(path);
-        if (!docDir.exists() || !docDir.canRead()) {
-            LOG.error("Document directory '{}' does not exist or is not readable, please check the path.", docDir.getAbsolutePath());
-            System.exit(1);
+    public void deleteFiles(String spec) {
+        List<Query> deletes = Collections.emptyList();
+        SortedSet<BytesRef> ids = null;
+        Predicate<String> manifestMatcher;
+        try {
+            if (spec.startsWith(DELETE_GLOB)) {
+                String glob = spec.substring(DELETE_GLOB.length());
+                deletes = Collections.singletonList(new WildcardQuery(new Term("path", glob)));
+                Pattern pattern = Pattern.compile(globToRegex(glob));
+                manifestMatcher = path -> pattern.matcher(path).matches();
+            } else if (spec.startsWith(DELETE_IDS)) {
+                ids = readIds(new File(spec.substring(DELETE_IDS.length())));
+                manifestMatcher = null;
+            } else {
+                String prefix = spec.endsWith(File.separator) ? spec.substring(0, spec.length() - 1) : spec;
+                BooleanQuery query = new BooleanQuery();
+                query.add(new TermQuery(new Term("path", prefix)), BooleanClause.Occur.SHOULD);
+                query.add(new PrefixQuery(new Term("path", prefix + File.separator)), BooleanClause.Occur.SHOULD);
+                deletes = Collections.<Query>singletonList(query);
+                manifestMatcher = path -> path.equals(prefix) || path.startsWith(prefix + File.separator);
+            }
+        } catch (IOException ex) {
+            LOG.error("Cannot read ids of the documents to delete: {}", ex.getMessage());
+            return;
         }
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, analyzer);
-        config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
-        try(IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)) { 
-            deleteDocs(writer, docDir);
+        long start = System.currentTimeMillis();
+        try {
+            IndexWriter writer = nrtIndex != null ? nrtIndex.getWriter() : new IndexWriter(FSDirectory.open(indexDir), createConfig());
+            try {
+                int before = writer.numDocs();
+                applyDeletes(writer, deletes);
+                if (ids != null) {
+                    deleteIds(writer, ids);
+                }
+                // the manifest is saved with the commit, like by an indexing run
+                FileManifest fileManifest = null;
+                int removed = 0;
+                if (manifestMatcher != null && new File(indexDir, FileManifest.FILE_NAME).exists()) {
+                    fileManifest = FileManifest.load(indexDir);
+                    removed = fileManifest.removeAll(manifestMatcher);
+                    if (removed > 0) {
+                        fileManifest.prepareCommit();
+                    }
+                }
+                writer.commit();
+                LOG.info("Deleted {} documents in {} ms", before - writer.numDocs(), System.currentTimeMillis() - start);
+                if (removed > 0) {
+                    fileManifest.commit();
+                    LOG.info("Removed {} files from the manifest", removed);
+                }
+            } finally {
+                if (nrtIndex == null) {
+                    writer.close();
+                }
+            }
+            if (nrtIndex != null) {
+                nrtIndex.refresh();
+            }
         } catch (IOException ex) {
-            System.out.println(ex.getMessage());
+            LOG.error(ex.getMessage());
+        }
+    }
+
+    private void applyDeletes(IndexWriter writer, List<Query> deletes) throws IOException {
+        for (int i = 0; i < deletes.size(); i += DELETE_BATCH_SIZE) {
+            List<Query> batch = deletes.subList(i, Math.min(deletes.size(), i + DELETE_BATCH_SIZE));
+            writer.deleteDocuments(batch.toArray(new Query[batch.size()]));
         }
     }
 
-    private void deleteDocs(IndexWriter writer, File file) throws IOException {
-        if (file.canRead()) {
-            if (file.isDirectory()) {
-                File[] files = file.listFiles();
-                if (files != null) {
-                    for (File file1 : files)
-                    {
-                        deleteDocs(writer, file1);
+    /**
+     * Deletes the documents with given ids and their formula documents, whose ids are the document id followed by
+     * <code>#</code>. The ids are sorted like the terms, so the terms enum mostly seeks forward.
+     */
+    private void deleteIds(IndexWriter writer, SortedSet<BytesRef> ids) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(writer, false)) {
+            Terms terms = MultiFields.getTerms(reader, "id");
+            if (terms == null) {
+                return;
+            }
+            TermsEnum te = terms.iterator(null);
+            List<Term> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+            for (BytesRef id : ids) {
+                if (te.seekExact(id)) {
+                    batch.add(new Term("id", BytesRef.deepCopyOf(id)));
+                }
+                BytesRef prefix = new BytesRef(id.utf8ToString() + "#");
+                if (te.seekCeil(prefix) != TermsEnum.SeekStatus.END) {
+                    for (BytesRef term = te.term(); term != null && StringHelper.startsWith(term, prefix); term = te.next()) {
+                        batch.add(new Term("id", BytesRef.deepCopyOf(term)));
                     }
                 }
+                if (batch.size() >= DELETE_BATCH_SIZE) {
+                    writer.deleteDocuments(batch.toArray(new Term[batch.size()]));
+                    batch.clear();
+                }
+            }
+            writer.deleteDocuments(batch.toArray(new Term[batch.size()]));
+        }
+    }
+
+    private SortedSet<BytesRef> readIds(File file) throws IOException {
+        SortedSet<BytesRef> result = new TreeSet<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String id = line.trim();
+            if (!id.isEmpty()) {
+                result.add(new BytesRef(id));
+            }
+        }
+        LOG.info("Deleting documents with {} ids listed in {}", result.size(), file.getAbsolutePath());
+        return result;
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*') {
+                sb.append(".*");
+            } else if (c == '?') {
+                sb.append('.');
             } else {
-                LOG.info("Deleting file {}.",file.getAbsoluteFile());
-                writer.deleteDocuments(new Term("path",resolvePath(file)));
+                sb.append(Pattern.quote(String.valueOf(c)));
             }
         }
+        return sb.toString();
     }
 
     /**
      * Prints statistic about the current index
      */
     public void getStats() {
-        String stats = "\nIndex statistics: \n\n";
         try(DirectoryReader dr = DirectoryReader.open(FSDirectory.open(indexDir))) {
-            stats += "Index directory: "+indexDir.getAbsolutePath() + "\n";
-            stats += "Number of indexed documents: " + dr.numDocs() + "\n";
-            
-            long fileSize = 0;
-            for (int i = 0; i < dr.numDocs(); i++) {
-                Document doc = dr.document(i);
-                if (doc.getField("filesize")!=null) {
-                    String size = doc.getField("filesize").stringValue();
-                    fileSize += Long.valueOf(size);
-                }
-            }
-            long indexSize = 0;
-            File[] files = indexDir.listFiles();
-            for (File f : files) {
-                indexSize += f.length();
-            }
-            stats += "Index size: " + indexSize + " bytes \n";
-            stats += "Approximated size of indexed files: " + fileSize + " bytes \n";
+            IndexStats stats = new IndexStats(indexDir, Settings.getNumThreads());
+            stats.compute(dr);
+            LOG.info("\nIndex statistics: \n\n" + stats);
+        } catch (IOException e) {
+            LOG.error(e.getMessage());
+        }
+    }
 
-            LOG.info(stats);
-        } catch (IOException | NumberFormatException e) {
+    /**
+     * Prints the on-disk size of the current index broken down by file type and by field.
+     *
+     * @param topTerms Number of the heaviest terms printed for every field.
+     */
+    public void analyzeFootprint(int topTerms) {
+        try {
+            IndexFootprint footprint = new IndexFootprint(indexDir, Settings.getNumThreads(), topTerms);
+            footprint.analyze();
+            LOG.info("\nIndex footprint: \n\n" + footprint);
+        } catch (IOException e) {
             LOG.error(e.getMessage());
-        } 
+        }
     }
 
-    
+    /**
+     * Prints the report on the M-term fingerprints of the current index.
+     */
+    public void reportFingerprints() {
+        try {
+            LOG.info("\nM-term fingerprints: \n\n" + new FingerprintReport(indexDir).report());
+        } catch (IOException e) {
+            LOG.error(e.getMessage());
+        }
+    }
 
     private String resolvePath(File file) throws IOException {
         String path = file.getCanonicalPath();
@@ -305,18 +781,15 @@ public class Indexing {
     private void printTimes() {
         LOG.info("---------------------------------");
         LOG.info(Settings.EMPTY_STRING);
-        LOG.info("{} DONE in total time {} ms",progress,System.currentTimeMillis() - startTime);
+        LOG.info("{} DONE in total time {} ms",pipeline.getProgress(),System.currentTimeMillis() - startTime);
         LOG.info("CPU time {} ms",getCpuTime());
         LOG.info("user time {} ms",getUserTime());
         MathTokenizer.printFormulaeCount(); // TODO
-        LOG.info(Settings.EMPTY_STRING);
-    }
-
-    private void countFiles(List<File> files) {
-        if (docLimit > 0) {
-            count = Math.min(files.size(), docLimit);
-        } else {
-            count = files.size();
+        FormulaCache cache = FormulaCache.getInstance();
+        if (cache != null) {
+            cache.printStats();
         }
+        IndexingMetrics.getInstance().printSummary();
+        LOG.info(Settings.EMPTY_STRING);
     }
 }
@@ -0,0 +1,325 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Metrics of the indexing runs of this JVM: throughput counters, latency histograms of the indexing stages, queue
+ * depths of the pipeline, CPU time of the worker threads and heap usage. The metrics are exposed as the
+ * <code>cz.muni.fi.mias:type=Indexing</code> MXBean and, if the METRICS_FILE setting is present, appended to the
+ * file as a JSON line every METRICS_INTERVAL seconds.
+ */
+public class IndexingMetrics implements IndexingMetricsMXBean {
+
+    private static final Logger LOG = LogManager.getLogger(IndexingMetrics.class);
+    private static final String OBJECT_NAME = "cz.muni.fi.mias:type=Indexing";
+    private static final IndexingMetrics INSTANCE = new IndexingMetrics();
+
+    /**
+     * Measured stages of indexing.
+     */
+    public enum Stage {
+        /** reading of the source files */
+        READ,
+        /** DOM parsing of the documents */
+        PARSE,
+        /** math tokenization of the formulae */
+        MATH,
+        /** adding of a document to the IndexWriter */
+        ADD,
+        /** intermediate and final commits */
+        COMMIT
+    }
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong formulae = new AtomicLong();
+    private final AtomicLong sourceBytes = new AtomicLong();
+    private final Collection<Thread> workers = new ConcurrentLinkedQueue<>();
+    private final Map<String, Collection<?>> queues = new LinkedHashMap<>();
+    private volatile long startTime = System.currentTimeMillis();
+    private ScheduledExecutorService dumper;
+
+    private IndexingMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @return Metrics shared by all indexing components.
+     */
+    public static IndexingMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Resets the metrics for a new indexing run, registers the MXBean and starts the periodic dump.
+     */
+    public synchronized void start() {
+        reset();
+        synchronized (queues) {
+            queues.clear();
+        }
+        workers.clear();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException ex) {
+            // registered by an earlier run in this JVM
+        } catch (JMException ex) {
+            LOG.warn("Cannot register indexing metrics MBean: {}", ex.getMessage());
+        }
+        String path = Settings.getMetricsFile();
+        if (path != null && dumper == null) {
+            final File file = new File(path);
+            long interval = Settings.getMetricsInterval();
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "mias-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleWithFixedDelay(() -> dump(file), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic dump. The last dump is made at once.
+     */
+    public synchronized void stop() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+            dump(new File(Settings.getMetricsFile()));
+        }
+    }
+
+    /**
+     * Records the latency of a stage.
+     *
+     * @param stage Measured stage.
+     * @param startNanos Value of System.nanoTime() at the start of the stage.
+     */
+    public void record(Stage stage, long startNanos) {
+        histograms.get(stage).record(System.nanoTime() - startNanos);
+    }
+
+    public void addFile() {
+        files.incrementAndGet();
+    }
+
+    public void addDocument() {
+        documents.incrementAndGet();
+    }
+
+    public void addFormulae(long count) {
+        formulae.addAndGet(count);
+    }
+
+    public void addSourceBytes(long bytes) {
+        sourceBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param thread Worker thread whose CPU time is reported.
+     */
+    public void addWorker(Thread thread) {
+        workers.add(thread);
+    }
+
+    /**
+     * @param name Name of the pipeline stage the queue feeds.
+     * @param queue Queue whose depth is reported.
+     */
+    public void addQueue(String name, Collection<?> queue) {
+        synchronized (queues) {
+            queues.put(name, queue);
+        }
+    }
+
+    @Override
+    public long getFiles() {
+        return files.get();
+    }
+
+    @Override
+    public long getDocuments() {
+        return documents.get();
+    }
+
+    @Override
+    public long getFormulae() {
+        return formulae.get();
+    }
+
+    @Override
+    public long getSourceBytes() {
+        return sourceBytes.get();
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        return (System.currentTimeMillis() - startTime) / 1000.0;
+    }
+
+    @Override
+    public double getDocumentsPerSecond() {
+        return perSecond(documents.get());
+    }
+
+    @Override
+    public double getFormulaePerSecond() {
+        return perSecond(formulae.get());
+    }
+
+    @Override
+    public double getSourceBytesPerSecond() {
+        return perSecond(sourceBytes.get());
+    }
+
+    private double perSecond(long value) {
+        double seconds = getElapsedSeconds();
+        return seconds <= 0 ? 0 : value / seconds;
+    }
+
+    @Override
+    public Map<String, StageLatency> getStageLatencies() {
+        Map<String, StageLatency> result = new LinkedHashMap<>();
+        for (Map.Entry<Stage, LatencyHistogram> e : histograms.entrySet()) {
+            result.put(e.getKey().name().toLowerCase(), StageLatency.of(e.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        synchronized (queues) {
+            for (Map.Entry<String, Collection<?>> e : queues.entrySet()) {
+                result.put(e.getKey(), e.getValue().size());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWorkerCpuMillis() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Iterator<Thread> it = workers.iterator();
+        while (it.hasNext()) {
+            Thread thread = it.next();
+            long cpu = threadBean.isThreadCpuTimeSupported() ? threadBean.getThreadCpuTime(thread.getId()) : -1;
+            if (cpu < 0 && !thread.isAlive()) {
+                it.remove();
+            } else {
+                result.put(thread.getName(), cpu / 1000000);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getHeapMax() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return heap.getMax() < 0 ? heap.getCommitted() : heap.getMax();
+    }
+
+    @Override
+    public void reset() {
+        startTime = System.currentTimeMillis();
+        files.set(0);
+        documents.set(0);
+        formulae.set(0);
+        sourceBytes.set(0);
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * Logs the throughput and the stage latencies.
+     */
+    public void printSummary() {
+        LOG.info(String.format("Throughput: %.1f documents/s, %.1f formulae/s, %.1f kB/s of sources",
+                getDocumentsPerSecond(), getFormulaePerSecond(), getSourceBytesPerSecond() / 1024));
+        for (Map.Entry<String, StageLatency> e : getStageLatencies().entrySet()) {
+            if (e.getValue().getCount() > 0) {
+                LOG.info("Stage {}: {}", e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void dump(File file) {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"time\":").append(System.currentTimeMillis());
+        sb.append(",\"elapsedSeconds\":").append(getElapsedSeconds());
+        sb.append(",\"files\":").append(getFiles());
+        sb.append(",\"documents\":").append(getDocuments());
+        sb.append(",\"formulae\":").append(getFormulae());
+        sb.append(",\"sourceBytes\":").append(getSourceBytes());
+        sb.append(",\"documentsPerSecond\":").append(getDocumentsPerSecond());
+        sb.append(",\"formulaePerSecond\":").append(getFormulaePerSecond());
+        sb.append(",\"sourceBytesPerSecond\":").append(getSourceBytesPerSecond());
+        sb.append(",\"heapUsed\":").append(getHeapUsed());
+        sb.append(",\"heapMax\":").append(getHeapMax());
+        sb.append(",\"stages\":{");
+        String separator = "";
+        for (Map.Entry<String, StageLatency> e : getStageLatencies().entrySet()) {
+            StageLatency l = e.getValue();
+            sb.append(separator).append('"').append(e.getKey()).append("\":{\"count\":").append(l.getCount())
+                    .append(",\"mean\":").append(l.getMeanMillis()).append(",\"p50\":").append(l.getP50Millis())
+                    .append(",\"p90\":").append(l.getP90Millis()).append(",\"p99\":").append(l.getP99Millis())
+                    .append(",\"max\":").append(l.getMaxMillis()).append('}');
+            separator = ",";
+        }
+        sb.append("},\"queues\":{");
+        separator = "";
+        for (Map.Entry<String, Integer> e : getQueueDepths().entrySet()) {
+            sb.append(separator).append('"').append(e.getKey()).append("\":").append(e.getValue());
+            separator = ",";
+        }
+        sb.append("},\"workerCpuMillis\":{");
+        separator = "";
+        for (Map.Entry<String, Long> e : getWorkerCpuMillis().entrySet()) {
+            sb.append(separator).append('"').append(e.getKey()).append("\":").append(e.getValue());
+            separator = ",";
+        }
+        sb.append("}}\n");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(sb.toString());
+        } catch (IOException ex) {
+            LOG.error("Cannot write indexing metrics to {}: {}", file.getAbsolutePath(), ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package cz.muni.fi.mias.indexing;
+
+import java.util.Map;
+
+/**
+ * Management interface of the indexing metrics, registered as <code>cz.muni.fi.mias:type=Indexing</code>.
+ */
+public interface IndexingMetricsMXBean {
+
+    long getFiles();
+
+    long getDocuments();
+
+    long getFormulae();
+
+    long getSourceBytes();
+
+    double getElapsedSeconds();
+
+    double getDocumentsPerSecond();
+
+    double getFormulaePerSecond();
+
+    double getSourceBytesPerSecond();
+
+    /**
+     * @return Latencies of the indexing stages keyed by the stage names.
+     */
+    Map<String, StageLatency> getStageLatencies();
+
+    /**
+     * @return Number of files waiting in the queues in front of the pipeline stages.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * @return CPU time in milliseconds of the indexing worker threads keyed by the thread names.
+     */
+    Map<String, Long> getWorkerCpuMillis();
+
+    long getHeapUsed();
+
+    long getHeapMax();
+
+    /**
+     * Clears the counters and histograms.
+     */
+    void reset();
+}
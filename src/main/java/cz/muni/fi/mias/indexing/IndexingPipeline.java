@@ -0,0 +1,703 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.indexing.doc.DocumentSource;
+import cz.muni.fi.mias.indexing.doc.FileExtDocumentHandler;
+import cz.muni.fi.mias.indexing.doc.TarEntryDocument;
+import cz.muni.fi.mias.indexing.doc.ZipEntryDocument;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Staged indexing pipeline. Files submitted by the discovery stage are passed through bounded queues to the
+ * parsing stage (FileExtDocumentHandler, which also tokenizes the formulae) and the indexing stage, which adds the
+ * documents to the shared thread-safe IndexWriter from several threads at once. When more IndexWriters (index
+ * shards) are given, every input file is routed to one of them by its path. Every stage has its own number
+ * of threads taken from the Settings. A full queue blocks the stage feeding it, so the slowest stage throttles
+ * the rest of the pipeline instead of letting the documents pile up in memory. Zip and tar archives are split into
+ * their entries on submission, so the entries of one archive are parsed and indexed by all threads of the stages.
+ * Tar archives are read in a single sequential pass by the submitting thread. Intermediate commits are made on a
+ * background thread as decided by the {@link CommitPolicy}. A batch whose processing fails, even with an Error, is
+ * passed on as failed, so no file is recorded as indexed without its documents and no stage waits for it forever.
+ */
+public class IndexingPipeline {
+
+    private static final Logger LOG = LogManager.getLogger(IndexingPipeline.class);
+    private static final Batch END = new Batch(null, null, -1);
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private final List<IndexWriter> writers;
+    private final Runnable commitListener;
+    private final int parseThreads = Settings.getParseThreads();
+    private final int indexThreads = Settings.getIndexThreads();
+    private final BlockingQueue<Batch> parseQueue = new ArrayBlockingQueue<>(Settings.getQueueSize());
+    private final BlockingQueue<Batch> indexQueue = new ArrayBlockingQueue<>(Settings.getQueueSize());
+    private final ExecutorService parsers = Executors.newFixedThreadPool(parseThreads, new StageThreadFactory("parse"));
+    private final ExecutorService indexers = Executors.newFixedThreadPool(indexThreads, new StageThreadFactory("index"));
+    private final AtomicLong progress = new AtomicLong();
+    private final AtomicLong fileProgress = new AtomicLong();
+    private volatile long count = -1;
+    private final boolean update = Settings.getUpdateFiles();
+    private final boolean hashing = Settings.getManifestHash();
+    private FileManifest manifest;
+    private boolean commitManifest;
+    private final Queue<Query> deletes = new ConcurrentLinkedQueue<>();
+    private Checkpoint checkpoint;
+    private CommitPolicy commitPolicy;
+
+    /**
+     * @param writers IndexWriters the documents are added to. They are shared by all indexing threads.
+     * @param commitListener Called before every intermediate commit.
+     */
+    public IndexingPipeline(List<IndexWriter> writers, Runnable commitListener) {
+        this.writers = writers;
+        this.commitListener = commitListener;
+    }
+
+    /**
+     * Turns on incremental indexing. Files recorded in the manifest as unchanged are skipped, changed files are
+     * re-indexed only if the UPDATE setting is true, and the manifest is updated with every indexed file.
+     *
+     * @param manifest Manifest of the indexed files.
+     * @param commitManifest If true, the manifest is saved with every intermediate commit of the IndexWriters.
+     */
+    public void setManifest(FileManifest manifest, boolean commitManifest) {
+        this.manifest = manifest;
+        this.commitManifest = commitManifest;
+    }
+
+    /**
+     * Sets the checkpoint the completed files are marked in. The checkpoint is stored in the user data of every
+     * intermediate commit.
+     *
+     * @param checkpoint Checkpoint of the indexing run.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Sets the policy the intermediate commits are made by. Without it, the pipeline does not commit at all.
+     *
+     * @param commitPolicy Commit policy of the indexing run.
+     */
+    public void setCommitPolicy(CommitPolicy commitPolicy) {
+        this.commitPolicy = commitPolicy;
+    }
+
+    /**
+     * Starts the worker threads of all stages.
+     */
+    public void start() {
+        IndexingMetrics metrics = IndexingMetrics.getInstance();
+        metrics.addQueue("parse", parseQueue);
+        metrics.addQueue("index", indexQueue);
+        if (commitPolicy != null) {
+            commitPolicy.start(this::commit);
+        }
+        for (int i = 0; i < parseThreads; i++) {
+            parsers.execute(new Stage(parseQueue) {
+                @Override
+                void process(Batch batch) throws InterruptedException {
+                    parse(batch);
+                }
+
+                @Override
+                void fail(Batch batch) throws InterruptedException {
+                    // passed on, so the indexing stage accounts the archive entry and records nothing
+                    batch.failed = true;
+                    batch.docs = Collections.emptyList();
+                    if (batch.archive != null) {
+                        batch.archive.failed = true;
+                    }
+                    indexQueue.put(batch);
+                }
+            });
+        }
+        for (int i = 0; i < indexThreads; i++) {
+            indexers.execute(new Stage(indexQueue) {
+                @Override
+                void process(Batch batch) {
+                    index(batch);
+                }
+
+                @Override
+                void fail(Batch batch) {
+                    if (batch.archive != null && !batch.accounted) {
+                        batch.archive.failed = true;
+                        batch.archive.indexed(0);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Submits a file to the pipeline. Blocks while the parsing stage is saturated. Every entry of a zip or tar
+     * archive is submitted as a separate unit of work.
+     *
+     * @param file File to be indexed.
+     * @param path Relative path the file will be indexed with.
+     * @param ordinal Number of the file in the order of the discovery.
+     * @throws InterruptedException
+     */
+    public void submit(File file, String path, long ordinal) throws InterruptedException {
+        Batch batch = new Batch(file, path, ordinal);
+        if (path.endsWith(".zip")) {
+            submitZip(batch);
+        } else if (TarEntryDocument.isTarArchive(path)) {
+            submitTar(batch);
+        } else {
+            parseQueue.put(batch);
+        }
+    }
+
+    /**
+     * Opens the zip archive and submits its entries followed by the archive itself, which carries the deletions of
+     * the vanished entries. The archive is closed when all its entries are parsed and it is recorded as indexed when
+     * all its entries are indexed.
+     */
+    private void submitZip(Batch batch) throws InterruptedException {
+        if (manifest != null) {
+            selectSources(batch);
+            if (batch.skip) {
+                parseQueue.put(batch);
+                return;
+            }
+        }
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(batch.file);
+        } catch (IOException ex) {
+            LOG.error("Cannot read file {}", batch.file.getAbsolutePath());
+            LOG.error(ex);
+            batch.failed = true;
+            parseQueue.put(batch);
+            return;
+        }
+        Archive archive = new Archive(zipFile, batch);
+        Enumeration<? extends ZipEntry> e = zipFile.entries();
+        while (e.hasMoreElements()) {
+            ZipEntry entry = e.nextElement();
+            if (!entry.isDirectory()) {
+                FileManifest.Entry member = new FileManifest.Entry(entry.getSize(), entry.getTime(), entry.getCrc());
+                Batch entryBatch = archive.newEntry(entry.getName());
+                if (manifest == null || selectMember(batch, entryBatch, member)) {
+                    entryBatch.entrySize = entry.getSize();
+                    entryBatch.source = new ZipEntryDocument(zipFile, batch.path, entry);
+                    archive.submit(entryBatch);
+                }
+            }
+        }
+        archive.finish();
+    }
+
+    /**
+     * Reads the tar archive in one sequential pass and submits its entries with their content followed by the
+     * archive itself, like {@link #submitZip(Batch)}. Unchanged entries are skipped without being kept in memory.
+     */
+    private void submitTar(Batch batch) throws InterruptedException {
+        if (manifest != null) {
+            selectSources(batch);
+            if (batch.skip) {
+                parseQueue.put(batch);
+                return;
+            }
+        }
+        Archive archive = new Archive(null, batch);
+        DocumentWatchdog watchdog = DocumentWatchdog.getInstance();
+        try (TarArchiveInputStream in = TarEntryDocument.openArchive(batch.file)) {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextTarEntry()) != null) {
+                if (entry.isFile()) {
+                    // too large entries are not read into memory at all
+                    boolean overSize = watchdog.isOverSize(entry.getSize()) || entry.getSize() > TarEntryDocument.MAX_SIZE;
+                    FileManifest.Entry member = new FileManifest.Entry(entry.getSize(), entry.getModTime().getTime(), FileManifest.NO_CRC);
+                    TarEntryDocument source = null;
+                    if (manifest != null && hashing && !overSize) {
+                        // unlike in zip archives, the checksum of a new or touched entry is known only from its content
+                        FileManifest.Entry previousMember = batch.previousMembers.get(entry.getName());
+                        if (previousMember == null || !previousMember.isUnchanged(member)) {
+                            source = new TarEntryDocument(in, batch.path, entry);
+                            member = new FileManifest.Entry(entry.getSize(), entry.getModTime().getTime(), source.getCrc());
+                        }
+                    }
+                    Batch entryBatch = archive.newEntry(entry.getName());
+                    if (manifest == null || selectMember(batch, entryBatch, member)) {
+                        if (overSize) {
+                            watchdog.quarantine(batch.path + "#" + entry.getName(), "size");
+                            continue;
+                        }
+                        entryBatch.entrySize = entry.getSize();
+                        entryBatch.source = source != null ? source : new TarEntryDocument(in, batch.path, entry);
+                        archive.submit(entryBatch);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // the entries read so far are indexed, the archive is not recorded as indexed
+            LOG.error("Cannot read file {}", batch.file.getAbsolutePath());
+            LOG.error(ex);
+            archive.failed = true;
+        }
+        archive.finish();
+    }
+
+    /**
+     * Waits until all submitted files pass through the pipeline and stops the worker threads and the intermediate
+     * commits.
+     *
+     * @throws InterruptedException
+     */
+    public void finish() throws InterruptedException {
+        drain(parseQueue, parseThreads, parsers);
+        drain(indexQueue, indexThreads, indexers);
+        if (commitPolicy != null) {
+            commitPolicy.stop();
+        }
+    }
+
+    /**
+     * Sets the total number of submitted files once the discovery is over. Until then the progress is reported
+     * without the total.
+     *
+     * @param count Number of files submitted to the pipeline.
+     */
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    /**
+     * @return Queries of all the deletions of outdated documents done by the pipeline in the index shards.
+     */
+    public Collection<Query> getDeletes() {
+        return deletes;
+    }
+
+    /**
+     * @return Number of documents added to the index so far.
+     */
+    public long getProgress() {
+        return progress.get();
+    }
+
+    private void drain(BlockingQueue<Batch> queue, int threads, ExecutorService executor) throws InterruptedException {
+        for (int i = 0; i < threads; i++) {
+            queue.put(END);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void parse(Batch batch) throws InterruptedException {
+        if (batch.archive != null) {
+            parseEntry(batch);
+            return;
+        }
+        FileExtDocumentHandler handler = new FileExtDocumentHandler(batch.file, batch.path);
+        if (manifest != null && batch.record == null && !batch.skip) {
+            selectSources(batch);
+        }
+        if (batch.failed) {
+            batch.docs = Collections.emptyList();
+        } else if (batch.skip) {
+            LOG.debug("Skipping unchanged file {}", batch.path);
+            batch.docs = Collections.emptyList();
+        } else {
+            batch.docs = handler.getDocuments(batch.file, batch.path);
+        }
+        indexQueue.put(batch);
+    }
+
+    private void parseEntry(Batch batch) throws InterruptedException {
+        try {
+            if (batch.source == null) {
+                batch.docs = Collections.emptyList();
+            } else {
+                FileExtDocumentHandler handler = new FileExtDocumentHandler(batch.file, batch.path);
+                batch.docs = handler.getDocuments(batch.entryName, batch.entrySize, batch.source);
+                batch.source = null;
+            }
+        } catch (IOException | RuntimeException ex) {
+            // the archive is not recorded as indexed, so the entry is handled again by the next run
+            LOG.error("Cannot handle entry {} of file {}", batch.entryName, batch.file.getAbsolutePath());
+            LOG.error(ex);
+            batch.docs = Collections.emptyList();
+            batch.archive.failed = true;
+        } finally {
+            batch.archive.release();
+        }
+        indexQueue.put(batch);
+    }
+
+    /**
+     * Compares the file with its manifest record and decides whether it needs indexing. For changed files it
+     * prepares the new manifest record and the deletion of the outdated documents, for changed archives the maps
+     * of the current and previous entries used by {@link #selectMember(Batch, Batch, FileManifest.Entry)}.
+     */
+    private void selectSources(Batch batch) {
+        File file = batch.file;
+        FileManifest.Entry current = new FileManifest.Entry(file.length(), file.lastModified(), FileManifest.NO_CRC);
+        FileManifest.Entry previous = manifest.visit(batch.path);
+        boolean archive = batch.path.endsWith(".zip") || TarEntryDocument.isTarArchive(batch.path);
+        if (previous != null && (previous.isUnchanged(current) || !update)) {
+            batch.skip = true;
+            return;
+        }
+        if (hashing && !archive) {
+            // also for new files, so their first record can be compared by the content next time
+            try {
+                current = new FileManifest.Entry(file.length(), file.lastModified(), FileManifest.crc(file));
+            } catch (IOException ex) {
+                LOG.error("Cannot compute checksum of file {}", file.getAbsolutePath());
+                LOG.error(ex);
+            }
+            if (previous != null && previous.hasSameContent(current)) {
+                batch.skip = true;
+                batch.record = current;
+                batch.members = Collections.emptyMap();
+                return;
+            }
+        }
+        batch.record = current;
+        if (archive) {
+            batch.members = new HashMap<>();
+            batch.previousMembers = manifest.getMembers(batch.path);
+        } else {
+            batch.members = Collections.emptyMap();
+            if (previous != null) {
+                batch.deletes.add(new TermQuery(new Term("path", batch.path)));
+            }
+        }
+    }
+
+    /**
+     * Records the archive entry in the manifest of the archive and decides whether it needs indexing. For changed
+     * entries it prepares the deletion of their outdated documents.
+     *
+     * @return true if the entry is new or changed
+     */
+    private boolean selectMember(Batch batch, Batch entryBatch, FileManifest.Entry member) {
+        String name = entryBatch.entryName;
+        batch.members.put(name, member);
+        FileManifest.Entry previousMember = batch.previousMembers.get(name);
+        if (previousMember == null) {
+            return true;
+        }
+        if (previousMember.hasSameContent(member) || previousMember.isUnchanged(member)) {
+            return false;
+        }
+        entryBatch.deletes.add(getMemberQuery(batch.path, name));
+        return true;
+    }
+
+    private void addVanishedMembers(Batch batch) {
+        if (batch.previousMembers != null) {
+            for (String name : batch.previousMembers.keySet()) {
+                if (!batch.members.containsKey(name)) {
+                    batch.deletes.add(getMemberQuery(batch.path, name));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Query matching all documents created from the archive entry.
+     */
+    static Query getMemberQuery(String path, String name) {
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term("path", path)), BooleanClause.Occur.MUST);
+        query.add(new TermQuery(new Term("archivepath", name)), BooleanClause.Occur.MUST);
+        return query;
+    }
+
+    private void index(Batch batch) {
+        IndexingMetrics metrics = IndexingMetrics.getInstance();
+        // all documents of a file go to the same shard, so updates and deletes by path stay within one shard
+        IndexWriter writer = getWriter(batch.path);
+        if (!batch.deletes.isEmpty()) {
+            try {
+                writer.deleteDocuments(batch.deletes.toArray(new Query[batch.deletes.size()]));
+                if (writers.size() > 1) {
+                    deletes.addAll(batch.deletes);
+                }
+            } catch (IOException ex) {
+                LOG.fatal("Deleting outdated documents of '{}' failed: {}", batch.path, ex.getMessage());
+            }
+        }
+        EventLog events = EventLog.getInstance();
+        int docs = 0;
+        for (Document doc : batch.docs) {
+            if (doc != null) {
+                try {
+                    LOG.debug("adding to index {} docId={}", doc.get("path"), doc.get("id"));
+                    long start = System.nanoTime();
+                    writer.updateDocument(new Term("id", doc.get("id")), doc);
+                    metrics.record(IndexingMetrics.Stage.ADD, start);
+                    metrics.addDocument();
+                    docs++;
+                    LOG.debug("Documents indexed: {}", progress.incrementAndGet());
+                    if (events.sample()) {
+                        events.event("document").put("path", doc.get("path")).put("id", doc.get("id")).log();
+                    }
+                } catch (Exception ex) {
+                    LOG.fatal("Document '{}' indexing failed: {}", doc.get("path"), ex.getMessage());
+                    LOG.fatal(ex.getStackTrace());
+                }
+            }
+        }
+        if (batch.archive != null) {
+            // the archive is recorded as a whole once all its entries are indexed
+            batch.accounted = true;
+            docs = batch.archive.indexed(docs);
+            if (docs < 0) {
+                return;
+            }
+            batch = batch.archive.batch;
+        } else if (batch.failed) {
+            return;
+        }
+        if (batch.record != null) {
+            manifest.put(batch.path, batch.record, batch.members);
+        }
+        if (checkpoint != null) {
+            checkpoint.complete(batch.ordinal);
+        }
+        metrics.addFile();
+        events.event("file").put("path", batch.path).put("docs", docs).log();
+        long total = count;
+        long done = fileProgress.incrementAndGet();
+        if (done % PROGRESS_INTERVAL == 0 || done == total) {
+            LOG.info("File progress: {} of {} done...", done, total < 0 ? "?" : total);
+        } else {
+            LOG.debug("File progress: {} of {} done...", done, total < 0 ? "?" : total);
+        }
+    }
+
+    /**
+     * @return IndexWriter (shard) the documents of the file with given path belong to.
+     */
+    IndexWriter getWriter(String path) {
+        return writers.get(Math.floorMod(path.hashCode(), writers.size()));
+    }
+
+    /**
+     * Commits all IndexWriters together with the checkpoint and the manifest. Called by the commit policy on its
+     * own thread while the indexing threads keep adding documents. Files are marked completed only after their
+     * documents are added, so the committed checkpoint and manifest never claim documents missing in the commit.
+     */
+    private synchronized void commit() throws IOException {
+        commitListener.run();
+        long start = System.nanoTime();
+        if (commitManifest) {
+            manifest.prepareCommit();
+        }
+        Map<String, String> commitData = checkpoint == null ? null : checkpoint.getCommitData(false);
+        for (IndexWriter writer : writers) {
+            if (commitData != null) {
+                writer.setCommitData(commitData);
+            }
+            writer.commit();
+        }
+        if (commitManifest) {
+            manifest.commit();
+        }
+        IndexingMetrics.getInstance().record(IndexingMetrics.Stage.COMMIT, start);
+        EventLog.getInstance().event("commit").put("millis", (System.nanoTime() - start) / 1000000).log();
+    }
+
+    /**
+     * Unit of work flowing through the pipeline: a single input file or archive entry and the documents created
+     * from it.
+     */
+    private static class Batch {
+
+        private final File file;
+        private final String path;
+        private final long ordinal;
+        private String entryName;
+        private long entrySize;
+        private DocumentSource source;
+        private Archive archive;
+        private List<Document> docs;
+        private boolean skip;
+        private boolean failed;
+        private boolean accounted;
+        private FileManifest.Entry record;
+        private Map<String, FileManifest.Entry> members;
+        private Map<String, FileManifest.Entry> previousMembers;
+        private final List<Query> deletes = new ArrayList<>();
+
+        Batch(File file, String path, long ordinal) {
+            this.file = file;
+            this.path = path;
+            this.ordinal = ordinal;
+        }
+    }
+
+    /**
+     * Archive whose entries pass through the pipeline as separate batches. An opened zip archive is shared by the
+     * batches of its entries and closed by the last of them to be parsed.
+     */
+    private class Archive {
+
+        private final ZipFile zipFile;
+        private final Batch batch;
+        // the batch of the archive itself is the last unit, so the counters cannot drop to zero before it
+        private final AtomicInteger unparsed = new AtomicInteger(1);
+        private final AtomicInteger unindexed = new AtomicInteger(1);
+        private final AtomicInteger docs = new AtomicInteger();
+        private volatile boolean failed;
+
+        /**
+         * @param zipFile Opened zip archive, null for a tar archive.
+         * @param batch Batch of the archive itself.
+         */
+        Archive(ZipFile zipFile, Batch batch) {
+            this.zipFile = zipFile;
+            this.batch = batch;
+        }
+
+        Batch newEntry(String name) {
+            Batch entryBatch = new Batch(batch.file, batch.path, batch.ordinal);
+            entryBatch.entryName = name;
+            entryBatch.archive = this;
+            return entryBatch;
+        }
+
+        void submit(Batch entryBatch) throws InterruptedException {
+            unparsed.incrementAndGet();
+            unindexed.incrementAndGet();
+            parseQueue.put(entryBatch);
+        }
+
+        /**
+         * Submits the batch of the archive itself after all its entries.
+         */
+        void finish() throws InterruptedException {
+            if (!failed && batch.members != null) {
+                addVanishedMembers(batch);
+            }
+            batch.archive = this;
+            parseQueue.put(batch);
+        }
+
+        /**
+         * Called when a batch of the archive is parsed. Closes the archive after the last one.
+         */
+        void release() {
+            if (unparsed.decrementAndGet() == 0 && zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException ex) {
+                    LOG.error("Cannot close file {}", batch.file.getAbsolutePath());
+                }
+            }
+        }
+
+        /**
+         * Called when a batch of the archive is indexed.
+         *
+         * @param count Number of documents the batch added.
+         * @return Number of documents of the whole archive after the last batch, -1 before it or if the archive
+         * could not be read completely.
+         */
+        int indexed(int count) {
+            int total = docs.addAndGet(count);
+            if (unindexed.decrementAndGet() != 0) {
+                return -1;
+            }
+            if (failed) {
+                LOG.warn("Archive {} is not recorded as indexed, it could not be read completely", batch.path);
+                return -1;
+            }
+            return total;
+        }
+    }
+
+    private abstract static class Stage implements Runnable {
+
+        private final BlockingQueue<Batch> queue;
+
+        Stage(BlockingQueue<Batch> queue) {
+            this.queue = queue;
+        }
+
+        abstract void process(Batch batch) throws InterruptedException;
+
+        /**
+         * Called when the processing of the batch fails. Passes the batch on or accounts it, so the stages after this
+         * one and the archive of the batch do not wait for it.
+         */
+        abstract void fail(Batch batch) throws InterruptedException;
+
+        @Override
+        public void run() {
+            try {
+                Batch batch;
+                while ((batch = queue.take()) != END) {
+                    try {
+                        process(batch);
+                    } catch (InterruptedException ex) {
+                        throw ex;
+                    } catch (Throwable ex) {
+                        // also errors like OutOfMemoryError, a dead stage thread would block the pipeline
+                        LOG.fatal("File '{}' processing failed: {}", batch.path, ex.getMessage());
+                        LOG.fatal(ex.getStackTrace());
+                        fail(batch);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                LOG.warn("Indexing stage thread {} interrupted", Thread.currentThread().getName());
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+
+        private final String stage;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        StageThreadFactory(String stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "mias-" + stage + "-" + counter.incrementAndGet());
+            IndexingMetrics.getInstance().addWorker(thread);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package cz.muni.fi.mias.indexing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with power of two buckets in microseconds. Percentiles are reported as the upper
+ * bound of the bucket they fall into, so they are accurate within a factor of two.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos Recorded latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m;
+        while ((m = max.get()) < nanos && !max.compareAndSet(m, nanos)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return Sum of all recorded latencies in milliseconds.
+     */
+    public double getTotalMillis() {
+        return total.get() / 1e6;
+    }
+
+    public double getMeanMillis() {
+        long c = count.get();
+        return c == 0 ? 0 : total.get() / 1e6 / c;
+    }
+
+    public double getMaxMillis() {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100.
+     * @return Upper bound in milliseconds of the latencies below the percentile.
+     */
+    public double getPercentileMillis(double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(c * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min((1L << i) / 1e3, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,112 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.PayloadSimilarity;
+import cz.muni.fi.mias.Settings;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Index shared by indexing and searching in one process. The index is owned by a single IndexWriter, which
+ * {@link Indexing} uses instead of opening its own, and searched through near-real-time readers of a SearcherManager,
+ * which {@link cz.muni.fi.mias.search.Searching} acquires its searchers from. The readers are refreshed every
+ * NRT_REFRESH milliseconds, so added and deleted documents become searchable without a commit. Commits are made for
+ * durability only: by the commit policy during an indexing run and at its end, together with the manifest and the
+ * checkpoint of the run, and when the index is closed.
+ */
+public class NrtIndex implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(NrtIndex.class);
+
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * @param dir Index directory.
+     * @param config Configuration of the IndexWriter.
+     * @param refreshMillis Milliseconds between refreshes of the searchers.
+     * @throws IOException
+     */
+    public NrtIndex(Directory dir, IndexWriterConfig config, long refreshMillis) throws IOException {
+        Indexing.checkMathFormat(dir);
+        this.writer = new IndexWriter(dir, config);
+        this.searcherManager = new SearcherManager(writer, true, new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(new PayloadSimilarity());
+                return searcher;
+            }
+        });
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mias-nrt-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                searcherManager.maybeRefresh();
+            } catch (IOException | RuntimeException ex) {
+                LOG.error("Refreshing of the searchers failed: {}", ex.getMessage());
+            }
+        }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Shared index in INDEXDIR configured like the one of {@link Indexing}, refreshed every NRT_REFRESH
+     * milliseconds.
+     * @throws IOException
+     */
+    public static NrtIndex open() throws IOException {
+        return new NrtIndex(FSDirectory.open(new File(Settings.getIndexDir())), Indexing.createConfig(new StandardAnalyzer()),
+                Settings.getNrtRefresh());
+    }
+
+    public IndexWriter getWriter() {
+        return writer;
+    }
+
+    public SearcherManager getSearcherManager() {
+        return searcherManager;
+    }
+
+    /**
+     * Makes all the changes done so far searchable at once.
+     *
+     * @throws IOException
+     */
+    public void refresh() throws IOException {
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    /**
+     * Stops the refreshes, commits the index and closes the writer.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        refresher.shutdownNow();
+        try {
+            searcherManager.close();
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Block-compressed store of the indexed document sources kept in the <code>sources</code> directory of the index, so
+ * snippets can be extracted on search nodes without the original corpus. Sources are appended to
+ * <code>sources.dat</code> in deflated blocks of about BLOCK_SIZE bytes, each block written as its compressed and raw
+ * lengths followed by the compressed bytes. Sources smaller than a block share the blocks, larger ones are split over
+ * blocks of their own. Every stored source is recorded in <code>sources.keys</code> as a tab separated line
+ * <code>blocks offset length key</code> once its blocks are written, where <code>blocks</code> are the comma separated
+ * positions of the blocks holding the source and <code>offset</code> is its start in the first of them, so a block
+ * cut by an interrupted run is never referenced. Sources are read block by block and skipped blocks are not inflated. A source indexed again is appended again and its later line wins; sources of deleted
+ * documents stay in the store until the index is rebuilt.
+ * <p>
+ * Sources are keyed by the path of the document source, the relative path of a file or the relative path of an
+ * archive and the name of the entry joined by <code>#</code>. The data file is memory-mapped for reading.
+ */
+public class SourceStore {
+
+    private static final Logger LOG = LogManager.getLogger(SourceStore.class);
+    public static final String DIR_NAME = "sources";
+    private static final String DATA = "sources.dat";
+    private static final String KEYS = "sources.keys";
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final long MAP_CHUNK = 1L << 30;
+    private static Output output = null;
+
+    private SourceStore() {
+    }
+
+    /**
+     * @param path Stored path of a document.
+     * @param archivePath Path of the document within its archive, null if the document is not an archive entry.
+     * @return Key of the document source in the store.
+     */
+    public static String key(String path, String archivePath) {
+        return archivePath == null ? path : path + "#" + archivePath;
+    }
+
+    /**
+     * Opens the store of the index in INDEXDIR for appending if SOURCE_STORE is set.
+     */
+    public static synchronized void open() {
+        close();
+        if (Settings.getSourceStore()) {
+            try {
+                output = new Output(new File(Settings.getIndexDir(), DIR_NAME));
+            } catch (IOException ex) {
+                LOG.error("Cannot open source store: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Store opened for appending by the current indexing run, null if the sources are not stored.
+     */
+    public static synchronized Output getOutput() {
+        return output;
+    }
+
+    /**
+     * Writes the pending block and closes the store opened for appending.
+     */
+    public static synchronized void close() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ex) {
+                LOG.error("Cannot close source store: {}", ex.getMessage());
+            }
+            output = null;
+        }
+    }
+
+    /**
+     * Opens the source store of an index for reading.
+     *
+     * @param indexDir Directory of the index.
+     * @return Store of the index, null if the index has no store.
+     */
+    public static Input openInput(File indexDir) {
+        File dir = new File(indexDir, DIR_NAME);
+        if (!new File(dir, KEYS).exists()) {
+            return null;
+        }
+        try {
+            return new Input(dir);
+        } catch (IOException ex) {
+            LOG.error("Cannot open source store {}: {}", dir.getAbsolutePath(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store opened for appending. Sources are collected to the current block, which is handed over to the thread
+     * filling it up, compressed outside the lock of the block and then written under the lock of the files. A source
+     * larger than a block is compressed and written by the thread adding it, one block at a time.
+     */
+    public static class Output implements Closeable {
+
+        private final OutputStream data;
+        private final Writer keys;
+        private Block block = new Block();
+        private long offset;
+
+        private Output(File dir) throws IOException {
+            dir.mkdirs();
+            File dataFile = new File(dir, DATA);
+            offset = dataFile.length();
+            data = new FileOutputStream(dataFile, true);
+            keys = new OutputStreamWriter(new FileOutputStream(new File(dir, KEYS), true), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Adds a source to the store.
+         *
+         * @param key Key of the source.
+         * @param content Content of the source.
+         * @throws IOException
+         */
+        public void put(String key, ByteBuffer content) throws IOException {
+            if (content.remaining() > BLOCK_SIZE) {
+                putLarge(key, content);
+                return;
+            }
+            Block full;
+            synchronized (this) {
+                block.add(key, content);
+                if (block.raw.size() < BLOCK_SIZE) {
+                    return;
+                }
+                full = block;
+                block = new Block();
+            }
+            write(full);
+        }
+
+        private void putLarge(String key, ByteBuffer content) throws IOException {
+            StringBuilder blocks = new StringBuilder();
+            byte[] raw = new byte[BLOCK_SIZE];
+            ByteBuffer in = content.duplicate();
+            while (in.hasRemaining()) {
+                int n = Math.min(raw.length, in.remaining());
+                in.get(raw, 0, n);
+                blocks.append(blocks.length() == 0 ? "" : ",").append(writeBlock(raw, n));
+            }
+            synchronized (data) {
+                keys.write(blocks + "\t0\t" + content.remaining() + "\t" + key + "\n");
+                keys.flush();
+            }
+        }
+
+        private void write(Block full) throws IOException {
+            if (full.keys.isEmpty()) {
+                return;
+            }
+            long blockOffset = writeBlock(full.raw.toByteArray(), full.raw.size());
+            synchronized (data) {
+                for (int i = 0; i < full.keys.size(); i++) {
+                    int[] range = full.ranges.get(i);
+                    keys.write(blockOffset + "\t" + range[0] + "\t" + range[1] + "\t" + full.keys.get(i) + "\n");
+                }
+                keys.flush();
+            }
+        }
+
+        /**
+         * Compresses a block and appends it to the data file.
+         *
+         * @return Position of the block in the data file.
+         */
+        private long writeBlock(byte[] raw, int rawLength) throws IOException {
+            byte[] compressed = new byte[BLOCK_SIZE];
+            int length = 0;
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                deflater.setInput(raw, 0, rawLength);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (length == compressed.length) {
+                        byte[] grown = new byte[compressed.length * 2];
+                        System.arraycopy(compressed, 0, grown, 0, length);
+                        compressed = grown;
+                    }
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+            } finally {
+                deflater.end();
+            }
+            // the blocks are written in the order they are compressed, the key lines name the positions of theirs
+            synchronized (data) {
+                ByteBuffer header = ByteBuffer.allocate(8).putInt(length).putInt(rawLength);
+                data.write(header.array());
+                data.write(compressed, 0, length);
+                data.flush();
+                long blockOffset = offset;
+                offset += 8 + length;
+                return blockOffset;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            Block last;
+            synchronized (this) {
+                last = block;
+                block = new Block();
+            }
+            try {
+                write(last);
+            } finally {
+                synchronized (data) {
+                    data.close();
+                    keys.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sources collected to a block before it is compressed.
+     */
+    private static class Block {
+
+        private final ByteArrayOutputStream raw = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+        private final List<String> keys = new ArrayList<>();
+        private final List<int[]> ranges = new ArrayList<>();
+
+        private void add(String key, ByteBuffer content) {
+            int start = raw.size();
+            byte[] buf = new byte[8192];
+            ByteBuffer in = content.duplicate();
+            while (in.hasRemaining()) {
+                int n = Math.min(buf.length, in.remaining());
+                in.get(buf, 0, n);
+                raw.write(buf, 0, n);
+            }
+            keys.add(key);
+            ranges.add(new int[]{start, raw.size() - start});
+        }
+    }
+
+    /**
+     * Store opened for reading. The keys are loaded to memory, the data file is memory-mapped in chunks and a
+     * block crossing the boundary of two chunks is read from the file channel. Sources appended after the store was
+     * opened are picked up by {@link #refresh()}.
+     */
+    public static class Input implements Closeable {
+
+        private final Map<String, Location> locations = new ConcurrentHashMap<>();
+        private final File keysFile;
+        private final FileChannel channel;
+        private long keysRead;
+        private long mappedSize = -1;
+        private volatile ByteBuffer[] chunks;
+
+        private Input(File dir) throws IOException {
+            keysFile = new File(dir, KEYS);
+            channel = FileChannel.open(new File(dir, DATA).toPath(), StandardOpenOption.READ);
+            refresh();
+        }
+
+        /**
+         * Loads the keys appended since the last call and maps the data written for them, e.g. by the indexing runs
+         * of an {@link NrtIndex} sharing the index with the searching. Only complete lines of the keys file are read.
+         *
+         * @throws IOException
+         */
+        public synchronized void refresh() throws IOException {
+            long length = keysFile.length();
+            if (length > keysRead) {
+                try (FileInputStream in = new FileInputStream(keysFile)) {
+                    in.getChannel().position(keysRead);
+                    InputStream buffered = new BufferedInputStream(in, 1 << 16);
+                    ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                    long read = keysRead;
+                    int b;
+                    while (read < length && (b = buffered.read()) != -1) {
+                        read++;
+                        if (b != '\n') {
+                            line.write(b);
+                            continue;
+                        }
+                        String[] parts = new String(line.toByteArray(), StandardCharsets.UTF_8).split("\t", 4);
+                        if (parts.length == 4) {
+                            String[] blocks = parts[0].split(",");
+                            long[] positions = new long[blocks.length];
+                            for (int i = 0; i < blocks.length; i++) {
+                                positions[i] = Long.parseLong(blocks[i]);
+                            }
+                            locations.put(parts[3], new Location(positions, Integer.parseInt(parts[1]), Long.parseLong(parts[2])));
+                        }
+                        line.reset();
+                        keysRead = read;
+                    }
+                }
+            }
+            // the blocks are written before their keys, so the data of all loaded keys is mapped
+            long size = channel.size();
+            if (size != mappedSize) {
+                ByteBuffer[] previous = chunks;
+                ByteBuffer[] mapped = new ByteBuffer[(int) ((size + MAP_CHUNK - 1) / MAP_CHUNK)];
+                for (int i = 0; i < mapped.length; i++) {
+                    long start = i * MAP_CHUNK;
+                    long chunkLength = Math.min(MAP_CHUNK, size - start);
+                    // the data is only appended, the full chunks mapped before are kept
+                    mapped[i] = previous != null && i < previous.length && previous[i].capacity() == chunkLength ? previous[i]
+                            : channel.map(FileChannel.MapMode.READ_ONLY, start, chunkLength);
+                }
+                chunks = mapped;
+                mappedSize = size;
+            }
+        }
+
+        /**
+         * @param key Key of a source.
+         * @return Content of the source or null if the source is not stored.
+         * @throws IOException
+         */
+        public InputStream get(String key) throws IOException {
+            Location location = locations.get(key);
+            return location == null ? null : new SourceInputStream(location);
+        }
+
+        private byte[] inflate(long position, int compressedLength, int rawLength) throws IOException {
+            byte[] compressed = new byte[compressedLength];
+            byte[] raw = new byte[rawLength];
+            read(position + 8, compressed.length).get(compressed);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int n = 0;
+                while (n < raw.length && !inflater.finished()) {
+                    n += inflater.inflate(raw, n, raw.length - n);
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupted source store block at " + position, ex);
+            } finally {
+                inflater.end();
+            }
+            return raw;
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer[] chunks = this.chunks;
+            int chunk = (int) (position / MAP_CHUNK);
+            int start = (int) (position % MAP_CHUNK);
+            if (chunk >= chunks.length) {
+                throw new IOException("Source store block at " + position + " is missing");
+            }
+            if (start + length <= chunks[chunk].capacity()) {
+                ByteBuffer result = chunks[chunk].duplicate();
+                result.position(start);
+                result.limit(start + length);
+                return result.slice();
+            }
+            ByteBuffer result = ByteBuffer.allocate(length);
+            while (result.hasRemaining()) {
+                if (channel.read(result, position + result.position()) < 0) {
+                    throw new IOException("Source store block at " + position + " is truncated");
+                }
+            }
+            result.flip();
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * Content of a source inflated block by block as it is read. The blocks skipped over are not inflated.
+         */
+        private class SourceInputStream extends InputStream {
+
+            private final Location location;
+            private int next;
+            private byte[] raw;
+            private int pos;
+            private int end;
+            private long remaining;
+            private long skip;
+
+            private SourceInputStream(Location location) {
+                this.location = location;
+                this.remaining = location.length;
+                this.skip = location.offset;
+            }
+
+            private boolean fill() throws IOException {
+                while (pos == end && remaining > 0) {
+                    if (next == location.blocks.length) {
+                        throw new IOException("Source store blocks at " + location.blocks[0] + " are truncated");
+                    }
+                    long position = location.blocks[next++];
+                    ByteBuffer header = Input.this.read(position, 8);
+                    int compressedLength = header.getInt();
+                    int rawLength = header.getInt();
+                    if (skip >= rawLength) {
+                        skip -= rawLength;
+                        continue;
+                    }
+                    raw = inflate(position, compressedLength, rawLength);
+                    pos = (int) skip;
+                    end = (int) Math.min(rawLength, pos + remaining);
+                    skip = 0;
+                }
+                return remaining > 0;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!fill()) {
+                    return -1;
+                }
+                remaining--;
+                return raw[pos++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, end - pos);
+                System.arraycopy(raw, pos, b, off, n);
+                pos += n;
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, remaining));
+                int inBlock = (int) Math.min(skipped, end - pos);
+                pos += inBlock;
+                skip += skipped - inBlock;
+                remaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return end - pos;
+            }
+        }
+    }
+
+    /**
+     * Blocks of a stored source, its start in the first block and its length.
+     */
+    private static class Location {
+
+        private final long[] blocks;
+        private final int offset;
+        private final long length;
+
+        private Location(long[] blocks, int offset, long length) {
+            this.blocks = blocks;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package cz.muni.fi.mias.indexing;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the latency histogram of one indexing stage.
+ */
+public class StageLatency {
+
+    private final long count;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({"count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis"})
+    public StageLatency(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    static StageLatency of(LatencyHistogram histogram) {
+        return new StageLatency(histogram.getCount(), histogram.getMeanMillis(), histogram.getPercentileMillis(50),
+                histogram.getPercentileMillis(90), histogram.getPercentileMillis(99), histogram.getMaxMillis());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f ms",
+                count, meanMillis, p50Millis, p90Millis, p99Millis, maxMillis);
+    }
+}
@@ -0,0 +1,117 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.indexing.IndexingMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.document.Document;
+
+/**
+ * DocumentSource reading the content of another source only once. The first reset of the stream loads the whole
+ * content into memory, every further reset returns a cheap stream over the loaded content. Files larger than the
+ * MMAP_THRESHOLD setting are memory-mapped instead of being copied to the heap.
+ */
+public class BufferedDocumentSource implements DocumentSource {
+
+    private final DocumentSource source;
+    private final File file;
+    private ByteBuffer content;
+
+    /**
+     * @param source Source whose content is buffered.
+     */
+    public BufferedDocumentSource(DocumentSource source) {
+        this(source, null);
+    }
+
+    /**
+     * @param source Source whose content is buffered.
+     * @param file File the source reads from, so large files can be memory-mapped. Null for other sources.
+     */
+    public BufferedDocumentSource(DocumentSource source, File file) {
+        this.source = source;
+        this.file = file;
+    }
+
+    @Override
+    public InputStream resetStream() throws IOException {
+        return new ByteBufferInputStream(getContent());
+    }
+
+    /**
+     * @return Read-only view of the whole content of the source. Loads the content on the first call.
+     * @throws IOException
+     */
+    public synchronized ByteBuffer getContent() throws IOException {
+        if (content == null) {
+            long start = System.nanoTime();
+            if (file != null && file.length() >= Settings.getMmapThreshold()) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } else {
+                try (InputStream is = source.resetStream()) {
+                    content = ByteBuffer.wrap(IOUtils.toByteArray(is));
+                }
+            }
+            IndexingMetrics metrics = IndexingMetrics.getInstance();
+            metrics.record(IndexingMetrics.Stage.READ, start);
+            metrics.addSourceBytes(content.capacity());
+        }
+        return content.asReadOnlyBuffer();
+    }
+
+    @Override
+    public Document createDocument() {
+        return source.createDocument();
+    }
+
+    @Override
+    public String getDocumentSourcePath() {
+        return source.getDocumentSourcePath();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -12,8 +12,8 @@ import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
 
 /**
  * File implementation of the DocumentSource.
@@ -44,8 +44,8 @@ public class FileDocument implements DocumentSource {
      * <ul>
      *  <li>path: relative path from the constructor</li>
      *  <li>id: the same as path</li>
-     *  <li>modified: last modified date of the file</li>
-     *  <li>filesize: size of the file</li>
+     *  <li>modified: last modified date of the file, milliseconds in the doc values</li>
+     *  <li>filesize: size of the file, also in the doc values</li>
      *  <li>title: name of the file</li>
      * </ul>
      * @return New Lucene document.
@@ -58,13 +58,17 @@ public class FileDocument implements DocumentSource {
         
         doc.add(new StringField("id", path, Field.Store.YES));
 
+        long modified = file.lastModified();
         doc.add(new StringField("modified",
-                DateTools.timeToString(file.lastModified(), DateTools.Resolution.MINUTE),
+                DateTools.timeToString(modified, DateTools.Resolution.MINUTE),
                 Field.Store.YES));
+        doc.add(new NumericDocValuesField("modified", modified));
 
-        doc.add(new LongField("filesize", file.length(), Field.Store.YES));
+        long size = file.length();
+        doc.add(new LongField("filesize", size, Field.Store.YES));
+        doc.add(new NumericDocValuesField("filesize", size));
         
-        doc.add(new TextField("title", file.getName(), Field.Store.YES));
+        doc.add(TextFields.create("title", file.getName(), Field.Store.YES));
         return doc;
     }
 
@@ -1,20 +1,20 @@
 package cz.muni.fi.mias.indexing.doc;
 
+import cz.muni.fi.mias.indexing.DocumentWatchdog;
+import cz.muni.fi.mias.indexing.SourceStore;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.document.Document;
 
 /**
  * Class providing document handling for files based on their file extension.
- * html,xhtml and txt files supported so far.
+ * html and xhtml files supported so far. Zip and tar archives of them are split into their entries by the
+ * IndexingPipeline, every entry is handled by {@link #getDocuments(String, long, DocumentSource)}.
  *
  * @author Martin Liska
  */
@@ -32,7 +32,7 @@ public class FileExtDocumentHandler implements Callable {
     }
 
     /**
-     * Calls coresponding document for input files based on it's extension. If needed, extracts an archive for file entries.
+     * Calls coresponding document for input files based on it's extension.
      * HtmlDocument is called in case of xhtml, html and xml files.
      * @param file Input file to be handled.
      * @return List<Lucene> of documents for the input files
@@ -40,37 +40,8 @@ public class FileExtDocumentHandler implements Callable {
     public List<Document> getDocuments(File file, String path) {
         String ext = path.substring(path.lastIndexOf(".") + 1);
         List<Document> result = new ArrayList<>();
-        List<MIaSDocument> miasDocuments = new ArrayList<>();
         try {
-            ZipFile zipFile;
-            if (ext.equals("zip")) {
-                zipFile = new ZipFile(file);
-                Enumeration<? extends ZipEntry> e = zipFile.entries();
-                while (e.hasMoreElements()) {
-                    ZipEntry entry = e.nextElement();
-                    if (!entry.isDirectory()) {
-                        String name = entry.getName();
-                        int extEnd = name.lastIndexOf("#");
-                        if (extEnd < name.lastIndexOf(".")) {
-                            extEnd = name.length();
-                        }
-                        ext = name.substring(name.lastIndexOf(".") + 1, extEnd);
-                        MIaSDocument miasDocument = mIasDocumentFactory.buildDocument(ext, new ZipEntryDocument(zipFile, path, entry));
-                        if (miasDocument != null) {
-                            miasDocuments.add(miasDocument);
-                        }
-                    }
-                }
-            } else {
-                DocumentSource source = new FileDocument(file, path);
-                MIaSDocument miasDocument = mIasDocumentFactory.buildDocument(ext, source);
-                if (miasDocument!=null) {
-                    miasDocuments.add(miasDocument);
-                }
-            }            
-            for (MIaSDocument doc : miasDocuments) {
-                result.addAll(doc.getDocuments());
-            }
+            result.addAll(buildDocuments(ext, new BufferedDocumentSource(new FileDocument(file, path), file), file.length()));
         } catch (IOException ex) {
             LOG.error("Cannot handle file {}", file.getAbsolutePath());
             LOG.error(ex);
@@ -79,6 +50,58 @@ public class FileExtDocumentHandler implements Callable {
         return result;
     }
 
+    /**
+     * Creates the documents of a single archive entry. The content of the entry is read before the method
+     * returns, so the archive can be closed once the documents of all its entries are created. Entries of one
+     * archive can be handled by several threads at once.
+     * @param name Name of the entry within the archive.
+     * @param size Size of the entry, negative if unknown.
+     * @param source Source of the entry, a ZipEntryDocument or a TarEntryDocument.
+     * @return List of Lucene documents for the entry
+     * @throws IOException
+     */
+    public List<Document> getDocuments(String name, long size, DocumentSource source) throws IOException {
+        int extEnd = name.lastIndexOf("#");
+        if (extEnd < name.lastIndexOf(".")) {
+            extEnd = name.length();
+        }
+        String ext = name.substring(name.lastIndexOf(".") + 1, extEnd);
+        return buildDocuments(ext, new BufferedDocumentSource(source), size);
+    }
+
+    /**
+     * Creates the documents of a source within the limits of the {@link DocumentWatchdog}. Quarantined and too
+     * large sources are skipped, the processing of the others is watched. Sources of the created documents are
+     * added to the {@link SourceStore} if the indexing run stores them.
+     */
+    private List<Document> buildDocuments(String ext, BufferedDocumentSource source, long size) throws IOException {
+        List<Document> result = new ArrayList<>();
+        DocumentWatchdog watchdog = DocumentWatchdog.getInstance();
+        String sourcePath = source.getDocumentSourcePath();
+        if (watchdog.isQuarantined(sourcePath)) {
+            LOG.info("Skipping quarantined document {}", sourcePath);
+            return result;
+        }
+        if (watchdog.isOverSize(size)) {
+            watchdog.quarantine(sourcePath, "size");
+            return result;
+        }
+        MIaSDocument miasDocument = mIasDocumentFactory.buildDocument(ext, source);
+        if (miasDocument != null) {
+            DocumentWatchdog.Ticket ticket = watchdog.watch(sourcePath);
+            try {
+                result.addAll(miasDocument.getDocuments());
+            } finally {
+                ticket.close();
+            }
+        }
+        SourceStore.Output store = SourceStore.getOutput();
+        if (store != null && !result.isEmpty()) {
+            store.put(sourcePath, source.getContent());
+        }
+        return result;
+    }
+
     public List<Document> call() {
         return getDocuments(file, path);
     }
@@ -0,0 +1,14 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+
+/**
+ * Term attribute indexing the {@link MTermFingerprint} of an M-term instead of its text.
+ */
+public interface FingerprintAttribute extends TermToBytesRefAttribute {
+
+    /**
+     * @param term M-term whose fingerprint is the term of the current token.
+     */
+    public void setTerm(CharSequence term);
+}
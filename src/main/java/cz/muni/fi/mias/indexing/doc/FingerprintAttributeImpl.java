@@ -0,0 +1,40 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Implementation of the FingerprintAttribute. TermToBytesRefAttribute is implemented explicitly, so the indexing
+ * chain finds the fingerprint as the term of the token.
+ */
+public class FingerprintAttributeImpl extends AttributeImpl implements FingerprintAttribute, TermToBytesRefAttribute {
+
+    private final BytesRef bytes = new BytesRef(MTermFingerprint.LENGTH);
+    private long fingerprint;
+
+    @Override
+    public void setTerm(CharSequence term) {
+        fingerprint = MTermFingerprint.fingerprint(term);
+    }
+
+    @Override
+    public void fillBytesRef() {
+        MTermFingerprint.encode(fingerprint, bytes);
+    }
+
+    @Override
+    public BytesRef getBytesRef() {
+        return bytes;
+    }
+
+    @Override
+    public void clear() {
+        fingerprint = 0;
+    }
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+        ((FingerprintAttributeImpl) target).fingerprint = fingerprint;
+    }
+}
@@ -13,10 +13,14 @@ import java.nio.file.PathMatcher;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
+ * Visitor accepting html, xhtml, zip, tar, tar.gz and tgz files. The accepted paths are either
+ * collected into a list or, when a consumer is given, handed to the consumer
+ * as soon as they are visited, so the walk can overlap with their processing.
  *
  * @author Dominik Szalai - emptulik at gmail.com
  */
@@ -25,12 +29,26 @@ public class FolderVisitor implements RecursiveFileVisitor
     private static final Logger LOG = LogManager.getLogger(FolderVisitor.class);
 
     private final List<Path> visitedPaths = new ArrayList<>();
-    private final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*{html,xhtml,zip}");
+    private final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*{html,xhtml,zip,tar,tar.gz,tgz}");
     private long docLimit = -1;
+    private long visitedCount = 0;
+    private final Consumer<Path> consumer;
 
     public FolderVisitor(long docLimit)
     {
         this.docLimit = docLimit;
+        this.consumer = visitedPaths::add;
+    }
+
+    /**
+     * @param docLimit maximal number of accepted paths, -1 means no limit
+     * @param consumer consumer the accepted paths are handed to instead of
+     * being collected
+     */
+    public FolderVisitor(long docLimit, Consumer<Path> consumer)
+    {
+        this.docLimit = docLimit;
+        this.consumer = consumer;
     }
 
     @Override
@@ -56,7 +74,8 @@ public class FolderVisitor implements RecursiveFileVisitor
             if (matcher.matches(file.getFileName()))
             {
                 LOG.trace("Adding file {} to output list.", file);
-                visitedPaths.add(file);
+                visitedCount++;
+                consumer.accept(file);
                 return FileVisitResult.CONTINUE;
             }
             else
@@ -92,13 +111,23 @@ public class FolderVisitor implements RecursiveFileVisitor
         return visitedPaths;
     }
     
+    @Override
+    public long getVisitedCount()
+    {
+        return visitedCount;
+    }
+    
     private boolean canContinue()
     {
+        if(Thread.currentThread().isInterrupted())
+        {
+            return false;
+        }
         if(docLimit == -1)
         {
             return true;
         }
         
-        return visitedPaths.size() <= docLimit;
+        return visitedCount < docLimit;
     }
 }
@@ -0,0 +1,365 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.MathMLConf;
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Cache of the M-terms of formulae shared by all indexing threads. Formulae are keyed by the MD5 hash of their
+ * canonical markup, so repeated formulae are tokenized only once. The cache is bounded by the heap size of the
+ * cached M-terms and evicts the least recently used formulae. It can be saved to a file and loaded in the next run.
+ * <p>
+ * The canonical markup consists of the element names, the attributes sorted by name except for id and xref, which
+ * are unique for every occurrence of a formula, and the trimmed text.
+ * <p>
+ * The saved file starts with its format version and a fingerprint of the tokenizer configuration (the miasmath
+ * version, the subformulae and weighting options and the MathML dictionaries). A file whose version or fingerprint
+ * does not match is discarded, so M-terms of another tokenizer are never indexed.
+ */
+public class FormulaCache {
+
+    private static final Logger LOG = LogManager.getLogger(FormulaCache.class);
+    private static final int SEGMENTS = 16;
+    private static final int MAGIC = 0x4d434643;
+    private static final int FORMAT_VERSION = 2;
+    private static FormulaCache instance;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final File file;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes Maximum heap size of the cached M-terms.
+     * @param file File the cache is loaded from and saved to, null if the cache is not persisted.
+     */
+    public FormulaCache(long maxBytes, File file) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+        this.file = file;
+    }
+
+    /**
+     * Returns the cache configured by FORMULA_CACHE_SIZE and FORMULA_CACHE_FILE settings. The cache is loaded from
+     * the file on the first call.
+     *
+     * @return The shared cache or null if the cache is disabled.
+     */
+    public static synchronized FormulaCache getInstance() {
+        if (instance == null) {
+            long size = Settings.getFormulaCacheSize();
+            if (size <= 0) {
+                return null;
+            }
+            String path = Settings.getFormulaCacheFile();
+            instance = new FormulaCache(size, path == null ? null : new File(path));
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * @param type MathML type the formula is tokenized for.
+     * @param math Math element of the formula.
+     * @return Cache key of the formula.
+     */
+    public static Key getKey(MathTokenizer.MathMLType type, Node math) {
+        StringBuilder canonical = new StringBuilder(type.name());
+        canonicalize(math, canonical);
+        return hash(canonical.toString());
+    }
+
+    private static Key hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            long hi = 0;
+            long lo = 0;
+            for (int i = 0; i < 8; i++) {
+                hi = (hi << 8) | (digest[i] & 0xff);
+                lo = (lo << 8) | (digest[i + 8] & 0xff);
+            }
+            return new Key(hi, lo);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return Fingerprint of everything the M-terms of a formula depend on besides its markup.
+     */
+    static long getConfigFingerprint() {
+        StringBuilder config = new StringBuilder(getTokenizerVersion());
+        // the options MathExtractor creates the tokenizers with
+        config.append("|subformulae=true|reduceWeighting=default");
+        config.append('|').append(sorted(MathMLConf.getElementDictionary()));
+        config.append('|').append(sorted(MathMLConf.getAttrDictionary()));
+        config.append('|').append(MathMLConf.getIgnoreNode());
+        return hash(config.toString()).lo;
+    }
+
+    private static String getTokenizerVersion() {
+        Package p = MathTokenizer.class.getPackage();
+        if (p != null && p.getImplementationVersion() != null) {
+            return p.getImplementationVersion();
+        }
+        // without a version in the manifest, a rebuilt library is told by its jar
+        try {
+            CodeSource codeSource = MathTokenizer.class.getProtectionDomain().getCodeSource();
+            File jar = new File(codeSource.getLocation().toURI());
+            return jar.getName() + ":" + jar.length() + ":" + jar.lastModified();
+        } catch (URISyntaxException | RuntimeException ex) {
+            return "unknown";
+        }
+    }
+
+    private static Map<String, String> sorted(Map<String, String> map) {
+        return map == null ? null : new TreeMap<>(map);
+    }
+
+    private static void canonicalize(Node node, StringBuilder sb) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                String name = node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+                sb.append('<').append(name);
+                NamedNodeMap attributes = node.getAttributes();
+                List<String> attrs = new ArrayList<>();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Attr attr = (Attr) attributes.item(i);
+                    String attrName = attr.getLocalName() != null ? attr.getLocalName() : attr.getName();
+                    if (!attrName.equals("id") && !attrName.equals("xref") && !attrName.startsWith("xmlns")) {
+                        attrs.add(attrName + "=\"" + attr.getValue() + "\"");
+                    }
+                }
+                String[] sorted = attrs.toArray(new String[attrs.size()]);
+                Arrays.sort(sorted);
+                for (String attr : sorted) {
+                    sb.append(' ').append(attr);
+                }
+                sb.append('>');
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    canonicalize(child, sb);
+                }
+                sb.append("</").append(name).append('>');
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                sb.append(node.getNodeValue().trim());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param key Key of the formula.
+     * @return Cached M-terms of the formula or null if the formula is not cached.
+     */
+    public FormulaTerms get(Key key) {
+        FormulaTerms result = getSegment(key).lookup(key);
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @param key Key of the formula.
+     * @param terms M-terms of the formula.
+     */
+    public void put(Key key, FormulaTerms terms) {
+        getSegment(key).cache(key, terms);
+    }
+
+    private Segment getSegment(Key key) {
+        return segments[(int) (key.lo & (SEGMENTS - 1))];
+    }
+
+    public void printStats() {
+        long h = hits.get();
+        long total = h + misses.get();
+        int size = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+                bytes += segment.bytes;
+            }
+        }
+        LOG.info("Formula cache: {} hits of {} lookups ({}%), {} formulae cached in {} kB",
+                h, total, total == 0 ? 0 : h * 100 / total, size, bytes / 1024);
+    }
+
+    private void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readLong() != getConfigFingerprint()) {
+                LOG.warn("Formula cache {} was saved by another version or configuration of the tokenizer, discarding it",
+                        file.getAbsolutePath());
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(in.readLong(), in.readLong());
+                int n = in.readInt();
+                String[] terms = new String[n];
+                float[] weights = new float[n];
+                for (int j = 0; j < n; j++) {
+                    terms[j] = in.readUTF();
+                    weights[j] = in.readFloat();
+                }
+                put(key, new FormulaTerms(terms, weights));
+            }
+            LOG.info("Loaded {} formulae to the formula cache from {}", count, file.getAbsolutePath());
+        } catch (IOException ex) {
+            LOG.error("Cannot read formula cache {}", file.getAbsolutePath());
+            LOG.error(ex);
+        }
+    }
+
+    /**
+     * Saves the cache to its file, if it has one.
+     */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        List<Map.Entry<Key, FormulaTerms>> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Map.Entry<Key, FormulaTerms> entry : segment.map.entrySet()) {
+                    if (isPersistable(entry.getValue())) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            if (file.getAbsoluteFile().getParentFile() != null) {
+                file.getAbsoluteFile().getParentFile().mkdirs();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp.toPath()))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(getConfigFingerprint());
+                out.writeInt(entries.size());
+                for (Map.Entry<Key, FormulaTerms> entry : entries) {
+                    out.writeLong(entry.getKey().hi);
+                    out.writeLong(entry.getKey().lo);
+                    FormulaTerms terms = entry.getValue();
+                    out.writeInt(terms.size());
+                    for (int i = 0; i < terms.size(); i++) {
+                        out.writeUTF(terms.getTerm(i));
+                        out.writeFloat(terms.getWeight(i));
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Saved {} formulae of the formula cache to {}", entries.size(), file.getAbsolutePath());
+        } catch (IOException ex) {
+            LOG.error("Cannot write formula cache {}", file.getAbsolutePath());
+            LOG.error(ex);
+        }
+    }
+
+    private static boolean isPersistable(FormulaTerms terms) {
+        for (int i = 0; i < terms.size(); i++) {
+            // DataOutput.writeUTF is limited to 65535 bytes, a char takes at most 3 of them
+            if (terms.getTerm(i).length() > 65535 / 3) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 128 bit hash of the canonical markup of a formula.
+     */
+    public static final class Key {
+
+        private final long hi;
+        private final long lo;
+
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hi == other.hi && lo == other.lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hi ^ (hi >>> 32));
+        }
+    }
+
+    private static class Segment {
+
+        // in access order, so the least recently used formulae are evicted first
+        private final Map<Key, FormulaTerms> map = new LinkedHashMap<>(1024, 0.75f, true);
+        private final long maxBytes;
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized FormulaTerms lookup(Key key) {
+            return map.get(key);
+        }
+
+        synchronized void cache(Key key, FormulaTerms terms) {
+            FormulaTerms previous = map.put(key, terms);
+            if (previous != null) {
+                bytes -= previous.ramBytesUsed();
+            }
+            bytes += terms.ramBytesUsed();
+            Iterator<FormulaTerms> it = map.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().ramBytesUsed();
+                it.remove();
+            }
+        }
+    }
+}
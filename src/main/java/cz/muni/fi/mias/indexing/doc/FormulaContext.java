@@ -0,0 +1,258 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import cz.muni.fi.mias.Settings;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Locations of the formulae in the source of a document, computed at index time and stored in the binary
+ * <code>formulacontext</code> field, so the snippet of a math hit is cut from the source without scanning it. For
+ * every formula position the byte offsets of the math element and of the sentence window around it are kept, found
+ * the way the snippet extractor used to find them on every query: the n-th <code>&lt;math</code> (or
+ * <code>&lt;m:math</code>) element is the formula at position n and the window reaches to the nearest sentence end
+ * or tag on both sides.
+ * <p>
+ * Records are ordered by position and written as variable length deltas: the position, the start of the math element
+ * relative to the previous one and the lengths of the text before, of the math element and of the text after.
+ */
+public class FormulaContext {
+
+    public static final String FIELD = "formulacontext";
+    private static final byte[] DOT_SPACE = bytes(". ");
+    private static final byte[] DOT_EOL = bytes("." + Settings.eol);
+
+    private final Map<Integer, Window> windows = new TreeMap<>();
+
+    private FormulaContext() {
+    }
+
+    /**
+     * Locates the formulae in the content of a source.
+     *
+     * @param source Source of the document.
+     * @return Locations of all formulae of the source.
+     * @throws IOException
+     */
+    public static FormulaContext of(DocumentSource source) throws IOException {
+        if (source instanceof BufferedDocumentSource) {
+            return of(((BufferedDocumentSource) source).getContent());
+        }
+        try (InputStream is = source.resetStream()) {
+            return of(ByteBuffer.wrap(IOUtils.toByteArray(is)));
+        }
+    }
+
+    /**
+     * Locates the formulae in UTF-8 encoded content.
+     *
+     * @param content Content of the document.
+     * @return Locations of all formulae of the content.
+     */
+    public static FormulaContext of(ByteBuffer content) {
+        FormulaContext result = new FormulaContext();
+        byte[] mathStart = bytes("<math");
+        byte[] mathEnd = bytes("</math>");
+        if (indexOf(content, mathStart, 1, content.limit()) == -1) {
+            mathStart = bytes("<m:math");
+            mathEnd = bytes("</m:math>");
+        }
+        int limit = content.limit();
+        int lastDotSpace = lastIndexOf(content, DOT_SPACE, limit - 1, 0);
+        int lastTagStart = lastIndexOf(content, new byte[]{'<'}, limit - 1, 0);
+        int start = 0;
+        for (int position = 0; (start = indexOf(content, mathStart, start + 1, limit)) != -1; position++) {
+            int end = indexOf(content, mathEnd, start, limit);
+            if (end == -1) {
+                break;
+            }
+            end += mathEnd.length;
+            int tagStart = lastIndexOf(content, new byte[]{'>'}, start, 0);
+            int preStart = Math.max(tagStart + 1, lastIndexOf(content, DOT_SPACE, start, tagStart + 1) + 2);
+            int dotEol = lastIndexOf(content, DOT_EOL, start, tagStart + 1);
+            if (dotEol != -1) {
+                preStart = Math.max(preStart, dotEol + DOT_EOL.length);
+            }
+            preStart = Math.min(preStart, start);
+
+            int postEnd = end;
+            if (lastDotSpace >= end && lastTagStart >= end) {
+                int bound = indexOf(content, new byte[]{'<'}, end, limit);
+                int dotSpace = indexOf(content, DOT_SPACE, end, bound);
+                if (dotSpace != -1) {
+                    bound = Math.min(bound, dotSpace + 1);
+                }
+                // the sentence end with a line break is looked for from the start of the formula
+                dotEol = indexOf(content, DOT_EOL, start, bound);
+                postEnd = Math.max(end, dotEol == -1 ? bound : dotEol + 1);
+            }
+            result.windows.put(position, new Window(preStart, start, end, postEnd));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the locations stored in the <code>formulacontext</code> field.
+     *
+     * @param bytes Value of the field.
+     * @return Locations of the formulae or null if the document has no such field.
+     */
+    public static FormulaContext fromBytesRef(BytesRef bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        FormulaContext result = new FormulaContext();
+        ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+        int position = -1;
+        long start = 0;
+        while (!in.eof()) {
+            position += in.readVInt() + 1;
+            start += in.readVLong();
+            long preStart = start - in.readVInt();
+            long end = start + in.readVInt();
+            result.windows.put(position, new Window(preStart, start, end, end + in.readVInt()));
+        }
+        return result;
+    }
+
+    /**
+     * @return Locations of all formulae in the form of the <code>formulacontext</code> field.
+     * @throws IOException
+     */
+    public BytesRef toBytesRef() throws IOException {
+        return toBytesRef(windows);
+    }
+
+    /**
+     * @param position Position of a formula.
+     * @return Location of the formula in the form of the <code>formulacontext</code> field.
+     * @throws IOException
+     */
+    public BytesRef toBytesRef(int position) throws IOException {
+        Window window = windows.get(position);
+        Map<Integer, Window> single = new TreeMap<>();
+        if (window != null) {
+            single.put(position, window);
+        }
+        return toBytesRef(single);
+    }
+
+    private static BytesRef toBytesRef(Map<Integer, Window> windows) throws IOException {
+        // a variable length int takes at most 5 bytes and a long 9
+        byte[] buffer = new byte[windows.size() * 29];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+        int previousPosition = -1;
+        long previousStart = 0;
+        for (Map.Entry<Integer, Window> e : windows.entrySet()) {
+            Window w = e.getValue();
+            out.writeVInt(e.getKey() - previousPosition - 1);
+            out.writeVLong(w.start - previousStart);
+            out.writeVInt((int) (w.start - w.preStart));
+            out.writeVInt((int) (w.end - w.start));
+            out.writeVInt((int) (w.postEnd - w.end));
+            previousPosition = e.getKey();
+            previousStart = w.start;
+        }
+        return new BytesRef(buffer, 0, out.getPosition());
+    }
+
+    /**
+     * @param position Position of a formula.
+     * @return Location of the formula or null if it was not found in the source.
+     */
+    public Window getWindow(int position) {
+        return windows.get(position);
+    }
+
+    /**
+     * @return Number of located formulae.
+     */
+    public int size() {
+        return windows.size();
+    }
+
+    private static int indexOf(ByteBuffer content, byte[] pattern, int from, int to) {
+        int last = Math.min(to, content.limit() - pattern.length + 1);
+        for (int i = Math.max(0, from); i < last; i++) {
+            if (matches(content, pattern, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(ByteBuffer content, byte[] pattern, int from, int to) {
+        for (int i = Math.min(from, content.limit() - pattern.length); i >= Math.max(0, to); i--) {
+            if (matches(content, pattern, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(ByteBuffer content, byte[] pattern, int index) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (content.get(index + j) != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Byte offsets of a formula and of the sentence window around it in the UTF-8 encoded source.
+     */
+    public static class Window {
+
+        private final long preStart;
+        private final long start;
+        private final long end;
+        private final long postEnd;
+
+        private Window(long preStart, long start, long end, long postEnd) {
+            this.preStart = preStart;
+            this.start = start;
+            this.end = end;
+            this.postEnd = postEnd;
+        }
+
+        /**
+         * @return Offset of the text before the formula.
+         */
+        public long getPreStart() {
+            return preStart;
+        }
+
+        /**
+         * @return Offset of the math element.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return Offset just after the math element.
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return Offset just after the text following the formula.
+         */
+        public long getPostEnd() {
+            return postEnd;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import cz.muni.fi.mias.math.Formula;
+import cz.muni.fi.mias.math.MathMLConf;
+import java.util.List;
+
+/**
+ * Weighted M-terms of one formula, i.e. the tokens MathTokenizer produces for it.
+ */
+public class FormulaTerms {
+
+    private final String[] terms;
+    private final float[] weights;
+
+    public FormulaTerms(String[] terms, float[] weights) {
+        this.terms = terms;
+        this.weights = weights;
+    }
+
+    /**
+     * @param formulae Formulae extracted by MathTokenizer from one formula.
+     * @return M-terms of the formulae.
+     */
+    public static FormulaTerms of(List<Formula> formulae) {
+        String[] terms = new String[formulae.size()];
+        float[] weights = new float[formulae.size()];
+        for (int i = 0; i < terms.length; i++) {
+            Formula f = formulae.get(i);
+            terms[i] = Formula.nodeToString(f.getNode(), false, MathMLConf.getElementDictionary(), MathMLConf.getAttrDictionary(), MathMLConf.getIgnoreNode());
+            weights[i] = f.getWeight();
+        }
+        return new FormulaTerms(terms, weights);
+    }
+
+    public int size() {
+        return terms.length;
+    }
+
+    public String getTerm(int i) {
+        return terms[i];
+    }
+
+    public float getWeight(int i) {
+        return weights[i];
+    }
+
+    /**
+     * @return Approximate heap size of the terms in bytes.
+     */
+    public long ramBytesUsed() {
+        long result = 64;
+        for (String term : terms) {
+            result += 48 + 2 * term.length();
+        }
+        return result;
+    }
+}
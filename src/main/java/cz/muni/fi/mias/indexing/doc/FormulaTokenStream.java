@@ -0,0 +1,88 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import cz.muni.fi.mias.math.PayloadHelper;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PackedTokenAttributeImpl;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.AttributeFactory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * TokenStream of already extracted formulae. Produces the same tokens as MathTokenizer: the M-terms of every formula
+ * with their weights as payloads, all M-terms of a formula at the position of the formula in the document. The
+ * M-terms are replaced by their {@link MTermFingerprint}s if requested.
+ */
+public class FormulaTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAtt;
+    private final FingerprintAttribute fingerprintAtt;
+    private final PayloadAttribute payAtt = addAttribute(PayloadAttribute.class);
+    private final PositionIncrementAttribute posAtt = addAttribute(PositionIncrementAttribute.class);
+
+    private final Map<Integer, FormulaTerms> formulae;
+    private Iterator<Map.Entry<Integer, FormulaTerms>> positions;
+    private FormulaTerms current;
+    private int next;
+    private int position;
+    private int increment;
+
+    /**
+     * @param formulae M-terms of the formulae of the document keyed by the positions of the formulae.
+     */
+    public FormulaTokenStream(Map<Integer, FormulaTerms> formulae) {
+        this(formulae, false);
+    }
+
+    /**
+     * @param formulae M-terms of the formulae of the document keyed by the positions of the formulae.
+     * @param fingerprints If true, the fingerprints of the M-terms are produced instead of their text.
+     */
+    public FormulaTokenStream(Map<Integer, FormulaTerms> formulae, boolean fingerprints) {
+        // the packed token attributes would take the place of the fingerprint term
+        super(fingerprints ? AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY
+                : AttributeFactory.getStaticImplementation(AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY, PackedTokenAttributeImpl.class));
+        this.formulae = new TreeMap<>(formulae);
+        this.termAtt = fingerprints ? null : addAttribute(CharTermAttribute.class);
+        this.fingerprintAtt = fingerprints ? addAttribute(FingerprintAttribute.class) : null;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        clearAttributes();
+        while (current == null || next == current.size()) {
+            if (positions == null || !positions.hasNext()) {
+                return false;
+            }
+            Map.Entry<Integer, FormulaTerms> entry = positions.next();
+            increment += entry.getKey() - position;
+            position = entry.getKey();
+            current = entry.getValue();
+            next = 0;
+        }
+        if (fingerprintAtt != null) {
+            fingerprintAtt.setTerm(current.getTerm(next));
+        } else {
+            termAtt.append(current.getTerm(next));
+        }
+        payAtt.setPayload(new BytesRef(PayloadHelper.encodeFloatToShortBytes(current.getWeight(next))));
+        next++;
+        posAtt.setPositionIncrement(increment);
+        increment = 0;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        positions = formulae.entrySet().iterator();
+        current = null;
+        position = -1;
+        increment = 0;
+    }
+}
@@ -2,11 +2,12 @@ package cz.muni.fi.mias.indexing.doc;
 
 import cz.muni.fi.mias.math.MathTokenizer;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.List;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 
@@ -26,7 +27,8 @@ public class HtmlDocument extends AbstractMIaSDocument {
     public List<Document> getDocuments() throws IOException {
         Document document = source.createDocument();
         
-        HtmlDocumentExtractor htmldoc = new HtmlDocumentExtractor(source.resetStream());
+        MathExtractor math = new MathExtractor(source);
+        HtmlDocumentExtractor htmldoc = new HtmlDocumentExtractor(math.getDocument());
 
         String arxivId = htmldoc.getArxivId();
         if (arxivId != null) {
@@ -38,7 +40,7 @@ public class HtmlDocument extends AbstractMIaSDocument {
         String title = htmldoc.getTitle();
         if (title != null) {
             document.removeField("title");
-            Field titleField = new TextField("title", title, Field.Store.YES);
+            Field titleField = TextFields.create("title", title, Field.Store.YES);
             titleField.setBoost(Float.parseFloat("10.0"));
             document.add(titleField);
         }
@@ -52,13 +54,15 @@ public class HtmlDocument extends AbstractMIaSDocument {
         
         String content = htmldoc.getBody();
         if (content != null) {
-            document.add(new TextField("content", content, Field.Store.NO));
+            document.add(TextFields.create("content", content, Field.Store.NO));
         }
 
-        InputStreamReader isr = new InputStreamReader(source.resetStream(), "UTF-8");
-        document.add(new TextField("pmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.PRESENTATION)));
-        isr = new InputStreamReader(source.resetStream(), "UTF-8");
-        document.add(new TextField("cmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.CONTENT)));
+        document.add(new TextField("pmath", math.getTokenStream(MathTokenizer.MathMLType.PRESENTATION)));
+        document.add(new TextField("cmath", math.getTokenStream(MathTokenizer.MathMLType.CONTENT)));
+        if (math.getDocument() != null) {
+            document.add(new NumericDocValuesField("formulae", math.getMathNodes().getLength()));
+            document.add(new StoredField(FormulaContext.FIELD, FormulaContext.of(source).toBytesRef()));
+        }
         
         return Arrays.asList(document);
     }
@@ -35,6 +35,15 @@ public class HtmlDocumentExtractor {
         parseDoc(is);
     }
 
+    /**
+     * @param document Already parsed document, null if the document could not be parsed.
+     */
+    public HtmlDocumentExtractor(org.w3c.dom.Document document) {
+        if (document != null) {
+            rawDoc = document.getDocumentElement();
+        }
+    }
+
     public HtmlDocumentExtractor(File file) {
         try {
             parseDoc(new FileInputStream(file));
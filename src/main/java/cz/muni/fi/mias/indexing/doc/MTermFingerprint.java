@@ -0,0 +1,126 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Fixed-width 64-bit fingerprints of M-terms, the lower half of the MurmurHash3 x64 128-bit hash of the UTF-8 bytes
+ * of the term. Fingerprints are indexed as 8-byte big-endian terms instead of the serialized subformulae when
+ * MTERM_FINGERPRINTS is set, so indexing and searching have to agree on the setting.
+ */
+public final class MTermFingerprint {
+
+    public static final int LENGTH = 8;
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MTermFingerprint() {
+    }
+
+    /**
+     * @param term M-term.
+     * @return Fingerprint of the term.
+     */
+    public static long fingerprint(CharSequence term) {
+        byte[] bytes = term.toString().getBytes(StandardCharsets.UTF_8);
+        return murmur3(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param term M-term.
+     * @return Fingerprint of the term encoded as an index term.
+     */
+    public static BytesRef toBytesRef(CharSequence term) {
+        BytesRef result = new BytesRef(LENGTH);
+        encode(fingerprint(term), result);
+        return result;
+    }
+
+    /**
+     * Encodes the fingerprint as a big-endian term, so the terms sort as unsigned fingerprints.
+     *
+     * @param fingerprint Fingerprint of an M-term.
+     * @param result Term the fingerprint is written to, its bytes have to be at least 8 long.
+     */
+    public static void encode(long fingerprint, BytesRef result) {
+        for (int i = 0; i < LENGTH; i++) {
+            result.bytes[i] = (byte) (fingerprint >>> (56 - 8 * i));
+        }
+        result.offset = 0;
+        result.length = LENGTH;
+    }
+
+    // the tail of MurmurHash3 falls through the cases on purpose, every case adds one more byte
+    @SuppressWarnings("fallthrough")
+    static long murmur3(byte[] data, int offset, int length) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            int p = offset + 16 * i;
+            long k1 = getLong(data, p);
+            long k2 = getLong(data, p + 8);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        int tail = offset + 16 * blocks;
+        switch (length & 15) {
+            case 15: k2 ^= (data[tail + 14] & 0xffL) << 48;
+            case 14: k2 ^= (data[tail + 13] & 0xffL) << 40;
+            case 13: k2 ^= (data[tail + 12] & 0xffL) << 32;
+            case 12: k2 ^= (data[tail + 11] & 0xffL) << 24;
+            case 11: k2 ^= (data[tail + 10] & 0xffL) << 16;
+            case 10: k2 ^= (data[tail + 9] & 0xffL) << 8;
+            case 9: k2 ^= data[tail + 8] & 0xffL;
+                h2 ^= mixK2(k2);
+            case 8: k1 ^= (data[tail + 7] & 0xffL) << 56;
+            case 7: k1 ^= (data[tail + 6] & 0xffL) << 48;
+            case 6: k1 ^= (data[tail + 5] & 0xffL) << 40;
+            case 5: k1 ^= (data[tail + 4] & 0xffL) << 32;
+            case 4: k1 ^= (data[tail + 3] & 0xffL) << 24;
+            case 3: k1 ^= (data[tail + 2] & 0xffL) << 16;
+            case 2: k1 ^= (data[tail + 1] & 0xffL) << 8;
+            case 1: k1 ^= data[tail] & 0xffL;
+                h1 ^= mixK1(k1);
+            default:
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long getLong(byte[] data, int p) {
+        return (data[p] & 0xffL) | (data[p + 1] & 0xffL) << 8 | (data[p + 2] & 0xffL) << 16 | (data[p + 3] & 0xffL) << 24
+                | (data[p + 4] & 0xffL) << 32 | (data[p + 5] & 0xffL) << 40 | (data[p + 6] & 0xffL) << 48
+                | (data[p + 7] & 0xffL) << 56;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,326 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import cz.muni.fi.mias.MIaSUtils;
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.indexing.DocumentWatchdog;
+import cz.muni.fi.mias.indexing.EventLog;
+import cz.muni.fi.mias.indexing.IndexingMetrics;
+import cz.muni.fi.mias.math.Formula;
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.TokenStream;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Extracts the math formulae of a document. The document is parsed to DOM once, and the DOM, the formula nodes and
+ * their M-terms with positions are shared by all the fields and documents created from the source. MathTokenizer only
+ * reads markup, so it still parses the formulae on its own once per MathML type: the whole source if all formulae are
+ * tokenized, otherwise a small document of just the formulae to be tokenized, serialized from the DOM in one pass.
+ * Formulae found in the {@link FormulaCache} are not tokenized at all. Formulae over the node limit of the
+ * {@link DocumentWatchdog} are left out. The time budget of the document is checked only between the runs of the
+ * tokenizer, so once it is spent, the formulae of the runs not started yet are not tokenized. Terms tokenized after
+ * the budget was spent are indexed, but not cached.
+ */
+public class MathExtractor {
+
+    private static final Logger LOG = LogManager.getLogger(MathExtractor.class);
+    // formulae serialized for one run of the tokenizer, the time budget is checked between the runs
+    private static final int TOKENIZE_CHUNK = 64;
+    private static final byte[] FORMULAE_START = "<formulae>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FORMULAE_END = "</formulae>".getBytes(StandardCharsets.UTF_8);
+
+    private final DocumentSource source;
+    private final Document document;
+    private final Map<MathTokenizer.MathMLType, Map<Integer, List<Formula>>> formulae = new EnumMap<>(MathTokenizer.MathMLType.class);
+    private final Map<MathTokenizer.MathMLType, Map<Integer, FormulaTerms>> terms = new EnumMap<>(MathTokenizer.MathMLType.class);
+    private final DocumentWatchdog watchdog = DocumentWatchdog.getInstance();
+    private boolean[] oversized;
+
+    /**
+     * Parses the document of the source.
+     *
+     * @param source Source of the document.
+     * @throws IOException
+     */
+    public MathExtractor(DocumentSource source) throws IOException {
+        this.source = source;
+        Document parsed = null;
+        try (InputStream is = source.resetStream()) {
+            long start = System.nanoTime();
+            parsed = MIaSUtils.prepareDocumentBuilder().parse(is);
+            IndexingMetrics.getInstance().record(IndexingMetrics.Stage.PARSE, start);
+        } catch (SAXException | ParserConfigurationException ex) {
+            LOG.fatal(ex);
+        }
+        this.document = parsed;
+        if (parsed != null) {
+            IndexingMetrics.getInstance().addFormulae(getMathNodes().getLength());
+            findOversized();
+        }
+    }
+
+    private void findOversized() {
+        int maxNodes = watchdog.getMaxFormulaNodes();
+        if (maxNodes <= 0) {
+            return;
+        }
+        NodeList maths = getMathNodes();
+        boolean[] result = new boolean[maths.getLength()];
+        boolean found = false;
+        for (int i = 0; i < result.length; i++) {
+            Element math = (Element) maths.item(i);
+            if (math.getElementsByTagName("*").getLength() + 1 > maxNodes) {
+                result[i] = true;
+                found = true;
+            }
+        }
+        if (found) {
+            oversized = result;
+            watchdog.reportPartial(source.getDocumentSourcePath(), "node");
+        }
+    }
+
+    /**
+     * @param position Position of a formula in the document.
+     * @return true if the formula has more nodes than the limit and is not tokenized
+     */
+    public boolean isOversized(int position) {
+        return oversized != null && position < oversized.length && oversized[position];
+    }
+
+    /**
+     * @return DOM of the document or null if the document could not be parsed.
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * @return Math elements of the document in document order, their indexes are the positions of the formulae.
+     */
+    public NodeList getMathNodes() {
+        return document.getElementsByTagNameNS("*", "math");
+    }
+
+    /**
+     * Returns the formulae of the document extracted for given MathML type. The document is tokenized on the first
+     * request for the type, without the formulae over the node limit if there are any.
+     *
+     * @param type MathML type of the formulae.
+     * @return Formulae of the document keyed by their positions.
+     * @throws IOException
+     */
+    public Map<Integer, List<Formula>> getFormulae(MathTokenizer.MathMLType type) throws IOException {
+        Map<Integer, List<Formula>> result = formulae.get(type);
+        if (result == null) {
+            if (watchdog.isCancelled()) {
+                result = Collections.emptyMap();
+            } else if (oversized != null) {
+                List<Integer> positions = new ArrayList<>();
+                for (int i = 0; i < oversized.length; i++) {
+                    if (!oversized[i]) {
+                        positions.add(i);
+                    }
+                }
+                result = tokenize(positions, type);
+            } else {
+                long start = System.nanoTime();
+                try (MathTokenizer tokenizer = new MathTokenizer(new InputStreamReader(source.resetStream(), "UTF-8"), true, type)) {
+                    tokenizer.reset();
+                    result = tokenizer.getFormulae();
+                }
+                IndexingMetrics.getInstance().record(IndexingMetrics.Stage.MATH, start);
+            }
+            if (result == null) {
+                result = Collections.emptyMap();
+            }
+            formulae.put(type, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the M-terms of the formulae of the document for given MathML type. If the formula cache is enabled,
+     * only the formulae missing in the cache are tokenized, on their own if there are few of them, otherwise together
+     * with the whole document.
+     *
+     * @param type MathML type of the formulae.
+     * @return M-terms of the formulae keyed by their positions.
+     * @throws IOException
+     */
+    public Map<Integer, FormulaTerms> getTerms(MathTokenizer.MathMLType type) throws IOException {
+        Map<Integer, FormulaTerms> result = terms.get(type);
+        if (result == null) {
+            FormulaCache cache = FormulaCache.getInstance();
+            if (cache == null || document == null) {
+                result = new HashMap<>();
+                for (Map.Entry<Integer, List<Formula>> entry : getFormulae(type).entrySet()) {
+                    result.put(entry.getKey(), FormulaTerms.of(entry.getValue()));
+                }
+            } else {
+                result = getCachedTerms(type, cache);
+            }
+            terms.put(type, result);
+            logFormulae(type, result);
+        }
+        return result;
+    }
+
+    private void logFormulae(MathTokenizer.MathMLType type, Map<Integer, FormulaTerms> terms) {
+        EventLog events = EventLog.getInstance();
+        if (!events.isEnabled()) {
+            return;
+        }
+        NodeList maths = document == null ? null : getMathNodes();
+        for (Map.Entry<Integer, FormulaTerms> entry : new TreeMap<>(terms).entrySet()) {
+            if (!events.sample()) {
+                continue;
+            }
+            int position = entry.getKey();
+            FormulaTerms formula = entry.getValue();
+            String[] t = new String[formula.size()];
+            float[] w = new float[formula.size()];
+            for (int i = 0; i < t.length; i++) {
+                t[i] = formula.getTerm(i);
+                w[i] = formula.getWeight(i);
+            }
+            String xml = null;
+            if (maths != null && position < maths.getLength()) {
+                StringWriter writer = new StringWriter();
+                try {
+                    Transformer transformer = MIaSUtils.prepareTransformer();
+                    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                    transformer.transform(new DOMSource(maths.item(position)), new StreamResult(writer));
+                    xml = writer.toString();
+                } catch (TransformerException ex) {
+                    LOG.warn("Cannot serialize formula {} of {}: {}", position, source.getDocumentSourcePath(), ex.getMessage());
+                }
+            }
+            events.event("formula").put("path", source.getDocumentSourcePath()).put("position", position)
+                    .put("type", type.name()).put("xml", xml).putTerms("terms", t, w).log();
+        }
+    }
+
+    private Map<Integer, FormulaTerms> getCachedTerms(MathTokenizer.MathMLType type, FormulaCache cache) throws IOException {
+        Map<Integer, FormulaTerms> result = new HashMap<>();
+        NodeList maths = getMathNodes();
+        FormulaCache.Key[] keys = new FormulaCache.Key[maths.getLength()];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (isOversized(i)) {
+                continue;
+            }
+            keys[i] = FormulaCache.getKey(type, maths.item(i));
+            FormulaTerms cached = cache.get(keys[i]);
+            if (cached != null) {
+                result.put(i, cached);
+            } else {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        boolean wholeDocument = oversized == null && missing.size() * 2 > keys.length;
+        Map<Integer, List<Formula>> formulaeOfMissing = wholeDocument ? getFormulae(type) : tokenize(missing, type);
+        for (int i : missing) {
+            if (!wholeDocument && !formulaeOfMissing.containsKey(i)) {
+                // formulae not tokenized in the budget are left out
+                break;
+            }
+            List<Formula> formulae = formulaeOfMissing.get(i);
+            FormulaTerms tokenized = FormulaTerms.of(formulae == null ? Collections.<Formula>emptyList() : formulae);
+            if (!watchdog.isCancelled()) {
+                cache.put(keys[i], tokenized);
+            }
+            result.put(i, tokenized);
+        }
+        return result;
+    }
+
+    /**
+     * Tokenizes the formulae at given positions. The formulae are serialized one after another into a single document,
+     * so the tokenizer runs once per chunk of them instead of once per formula.
+     *
+     * @return Formulae keyed by their positions, without the ones left out when the time budget was spent.
+     */
+    private Map<Integer, List<Formula>> tokenize(List<Integer> positions, MathTokenizer.MathMLType type) throws IOException {
+        Map<Integer, List<Formula>> result = new HashMap<>();
+        NodeList maths = getMathNodes();
+        for (int from = 0; from < positions.size() && !watchdog.isCancelled(); from += TOKENIZE_CHUNK) {
+            List<Integer> chunk = positions.subList(from, Math.min(positions.size(), from + TOKENIZE_CHUNK));
+            long start = System.nanoTime();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            outputStream.write(FORMULAE_START);
+            try {
+                Transformer transformer = MIaSUtils.prepareTransformer();
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                for (int position : chunk) {
+                    transformer.transform(new DOMSource(maths.item(position)), new StreamResult(outputStream));
+                }
+            } catch (TransformerException ex) {
+                throw new IOException(ex);
+            }
+            outputStream.write(FORMULAE_END);
+            InputStreamReader isr = new InputStreamReader(new ByteArrayInputStream(outputStream.toByteArray()), StandardCharsets.UTF_8);
+            try (MathTokenizer tokenizer = new MathTokenizer(isr, true, type)) {
+                tokenizer.reset();
+                // the n-th formula of the chunk has position n in the tokenized document
+                Map<Integer, List<Formula>> formulae = tokenizer.getFormulae();
+                for (int i = 0; i < chunk.size(); i++) {
+                    List<Formula> f = formulae == null ? null : formulae.get(i);
+                    result.put(chunk.get(i), f == null ? Collections.<Formula>emptyList() : f);
+                }
+            }
+            IndexingMetrics.getInstance().record(IndexingMetrics.Stage.MATH, start);
+        }
+        return result;
+    }
+
+    /**
+     * @param type MathML type of the formulae.
+     * @return TokenStream of all formulae of the document.
+     * @throws IOException
+     */
+    public TokenStream getTokenStream(MathTokenizer.MathMLType type) throws IOException {
+        return new FormulaTokenStream(getTerms(type), Settings.getMTermFingerprints());
+    }
+
+    /**
+     * @param type MathML type of the formulae.
+     * @param position Position of the formula in the document.
+     * @return TokenStream of the single formula at given position.
+     * @throws IOException
+     */
+    public TokenStream getTokenStream(MathTokenizer.MathMLType type, int position) throws IOException {
+        FormulaTerms formula = getTerms(type).get(position);
+        if (formula == null) {
+            return new FormulaTokenStream(Collections.<Integer, FormulaTerms>emptyMap());
+        }
+        return new FormulaTokenStream(Collections.singletonMap(position, formula), Settings.getMTermFingerprints());
+    }
+}
@@ -20,4 +20,11 @@ public interface RecursiveFileVisitor extends FileVisitor<Path>
      * @return list of visited paths
      */
     List<Path> getVisitedPaths();
+
+    /**
+     * Method is used to obtain the number of paths accepted so far, including
+     * the paths that were handed over without being collected.
+     * @return number of accepted paths
+     */
+    long getVisitedCount();
 }
@@ -0,0 +1,157 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+
+/**
+ * Tar archive entry implementation of the DocumentSource. A tar archive can only be read sequentially, so the content
+ * of the entry is read from the archive stream when the source is created and kept in memory. Entries larger than a
+ * byte array can hold are never read. The documents of an entry of an uncompressed tar archive keep the offset of
+ * the entry content in the archive, so the content can be read again without scanning the archive.
+ */
+public class TarEntryDocument implements DocumentSource {
+
+    /** Largest entry whose content can be kept in memory. */
+    public static final long MAX_SIZE = Integer.MAX_VALUE - 8;
+    public static final String OFFSET_FIELD = "archiveoffset";
+
+    private final String path;
+    private final String name;
+    private final long modified;
+    private final long offset;
+    private final byte[] content;
+
+    /**
+     * Reads the current entry of the archive stream.
+     *
+     * @param in Tar archive stream positioned at the entry.
+     * @param path Relative path to the archive.
+     * @param entry Current entry of the stream from which the Lucene document will be created.
+     * @throws IOException
+     */
+    public TarEntryDocument(TarArchiveInputStream in, String path, TarArchiveEntry entry) throws IOException {
+        this.path = path;
+        this.name = entry.getName();
+        this.modified = entry.getModTime().getTime();
+        // the stream has just read the header, so its position is the start of the content
+        this.offset = in.getBytesRead();
+        this.content = IOUtils.toByteArray(in, entry.getSize());
+    }
+
+    /**
+     * @param path Path to a file.
+     * @return true if the file is a tar archive, possibly gzip compressed.
+     */
+    public static boolean isTarArchive(String path) {
+        return path.endsWith(".tar") || path.endsWith(".tar.gz") || path.endsWith(".tgz");
+    }
+
+    /**
+     * Opens a tar archive for sequential reading of its entries.
+     *
+     * @param file Tar archive, gzip compressed if its name ends with .gz or .tgz.
+     * @return Stream of the archive.
+     * @throws IOException
+     */
+    public static TarArchiveInputStream openArchive(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        try {
+            String name = file.getName();
+            if (name.endsWith(".gz") || name.endsWith(".tgz")) {
+                in = new GzipCompressorInputStream(in, true);
+            }
+            return new TarArchiveInputStream(in);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens the content of an entry of an uncompressed tar archive.
+     *
+     * @param file Uncompressed tar archive.
+     * @param offset Offset of the content stored in the archiveoffset field.
+     * @param size Size of the entry.
+     * @return Stream of the content of the entry.
+     * @throws IOException
+     */
+    public static InputStream openEntry(File file, long offset, long size) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+            return new BoundedInputStream(in, size);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public InputStream resetStream() throws IOException {
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * @return CRC-32 checksum of the content of the entry.
+     */
+    public long getCrc() {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Creates Lucene document for the tar archive entry with the fields:
+     * <ul>
+     *  <li>path: relative path from the constructor</li>
+     *  <li>id: relative path + path within the tar archive</li>
+     *  <li>modified: last modified date of the entry, milliseconds in the doc values</li>
+     *  <li>filesize: size of the entry, also in the doc values</li>
+     *  <li>title: file name of the entry</li>
+     *  <li>archivepath: file name of the entry</li>
+     *  <li>archiveoffset: offset of the content of the entry, only in uncompressed archives</li>
+     * </ul>
+     * @return New Lucene document.
+     */
+    @Override
+    public Document createDocument() {
+        Document doc = new Document();
+        doc.add(new StringField("path", path, Field.Store.YES));
+        doc.add(new StringField("id", path + File.separator + name, Field.Store.YES));
+        doc.add(new StringField("modified",
+                DateTools.timeToString(modified, DateTools.Resolution.MINUTE),
+                Field.Store.YES));
+        doc.add(new NumericDocValuesField("modified", modified));
+        doc.add(new LongField("filesize", content.length, Field.Store.YES));
+        doc.add(new NumericDocValuesField("filesize", content.length));
+        doc.add(TextFields.create("title", name, Field.Store.YES));
+        doc.add(new StringField("archivepath", name, Field.Store.YES));
+        if (path.endsWith(".tar")) {
+            doc.add(new StoredField(OFFSET_FIELD, offset));
+        }
+        return doc;
+    }
+
+    @Override
+    public String getDocumentSourcePath() {
+        return path + "#" + name;
+    }
+}
@@ -0,0 +1,35 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import cz.muni.fi.mias.Settings;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo;
+
+/**
+ * Creates the text fields highlighted in snippets, <code>title</code> and <code>content</code>. With CONTENT_OFFSETS
+ * they are stored and indexed with offsets, so the search highlights them from the postings. Lucene indexes a field
+ * with the weakest options any of its documents in a segment uses, so every such field is created here.
+ */
+public final class TextFields {
+
+    private static final FieldType WITH_OFFSETS = new FieldType(TextField.TYPE_STORED);
+
+    static {
+        WITH_OFFSETS.setIndexOptions(FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        WITH_OFFSETS.freeze();
+    }
+
+    private TextFields() {
+    }
+
+    /**
+     * @param name Name of the field.
+     * @param value Text of the field.
+     * @param store Whether the text is stored without CONTENT_OFFSETS. It is always stored with it.
+     * @return Text field of the document.
+     */
+    public static Field create(String name, String value, Field.Store store) {
+        return Settings.getContentOffsets() ? new Field(name, value, WITH_OFFSETS) : new TextField(name, value, store);
+    }
+}
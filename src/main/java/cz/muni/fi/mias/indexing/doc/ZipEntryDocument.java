@@ -13,8 +13,8 @@ import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
 
 /**
  * Zip file implementation of the DocumentSource.
@@ -49,8 +49,8 @@ public class ZipEntryDocument implements DocumentSource {
      * <ul>
      *  <li>path: relative path from the constructor</li>
      *  <li>id: relative path + path within the zip file</li>
-     *  <li>modified: last modified date of the entry</li>
-     *  <li>filesize: size of the entry</li>
+     *  <li>modified: last modified date of the entry, milliseconds in the doc values</li>
+     *  <li>filesize: size of the entry, also in the doc values</li>
      *  <li>title: file name of the entry</li>
      *  <li>archivepath: file name of the entry</li>
      * </ul>
@@ -64,8 +64,10 @@ public class ZipEntryDocument implements DocumentSource {
         doc.add(new StringField("modified",
                 DateTools.timeToString(zipEntry.getTime(), DateTools.Resolution.MINUTE),
                 Field.Store.YES));
-        doc.add(new LongField("filesize", zipEntry.getSize(), Field.Store.YES));     
-        doc.add(new TextField("title", zipEntry.getName(), Field.Store.YES));   
+        doc.add(new NumericDocValuesField("modified", zipEntry.getTime()));
+        doc.add(new LongField("filesize", zipEntry.getSize(), Field.Store.YES));
+        doc.add(new NumericDocValuesField("filesize", zipEntry.getSize()));
+        doc.add(TextFields.create("title", zipEntry.getName(), Field.Store.YES));   
         doc.add(new StringField("archivepath", zipEntry.getName(), Field.Store.YES));
         return doc;
     }
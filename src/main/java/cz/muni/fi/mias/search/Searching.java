@@ -1,14 +1,20 @@
 package cz.muni.fi.mias.search;
 
 import cz.muni.fi.mias.*;
+import cz.muni.fi.mias.indexing.FingerprintReport;
+import cz.muni.fi.mias.indexing.SourceStore;
+import cz.muni.fi.mias.indexing.doc.FormulaContext;
+import cz.muni.fi.mias.indexing.doc.MTermFingerprint;
+import cz.muni.fi.mias.indexing.doc.TarEntryDocument;
 import cz.muni.fi.mias.math.MathSeparator;
 import cz.muni.fi.mias.math.MathTokenizer;
 import cz.muni.fi.mias.search.snippets.NiceSnippetExtractor;
+import cz.muni.fi.mias.search.snippets.OffsetHighlighter;
 import cz.muni.fi.mias.search.snippets.SnippetExtractor;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -23,20 +29,28 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
@@ -44,7 +58,9 @@ import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
@@ -58,23 +74,37 @@ import org.apache.lucene.util.Counter;
 
 /**
  * Searching class responsible for searching over current index.
- *
+ * <p>
+ * The snippets of all searches are extracted by one pool of SNIPPET_THREADS
+ * threads and the searches are limited by the global clock of
+ * TimeLimitingCollector, so a search starts no threads of its own. The pool
+ * is released by {@link #close()}.
  *
  * @author Martin Liska
  * @since 14.5.2010
  */
-public class Searching {
+public class Searching implements Closeable {
 
     private static final Logger LOG = LogManager.getLogger(Searching.class);
+
+    static {
+        MIaSUtils.useJdkXmlFactories();
+    }
+
     private IndexSearcher indexSearcher;
+    private SearcherManager searcherManager;
+    private volatile SourceStore.Input sourceStore;
+    private ReferenceManager.RefreshListener sourceStoreRefresher;
     private String storagePath;
     private PayloadSimilarity ps = new PayloadSimilarity();
 //    private TitlesSuggester sug;
     private int snippetsEnabledLimit = 100;
-    private static final int searchTimeLimiterTickLengthMillisec = 1000; // 1 second
-    private static final int searchTimeLimiterAllowedTicks = 30; // 30 seconds
-    private static final int snippetExtractionTimeoutMillisec = 500; // 0.5 seconds
-    private static final int snippetExtractionNumOfThreads = (int) Math.round(0.9 * Runtime.getRuntime().availableProcessors()); // Use roughly 90% of available CPU cores for parallel extraction of snippets
+    // snippets of about this many searches wait for the threads, the snippets of the next ones are given up
+    private static final int SNIPPET_QUEUED_SEARCHES = 4;
+    private boolean ownsReader = false;
+    private final long searchTimeoutMillisec = Settings.getSearchTimeout();
+    private final long snippetExtractionTimeoutMillisec = Settings.getSnippetTimeout();
+    private final ExecutorService snippetsExtractionExecutor = createSnippetsExtractionExecutor(Settings.getSnippetThreads(), SNIPPET_QUEUED_SEARCHES * snippetsEnabledLimit);
 
     /**
      * Constructs new Searching on the index from the Settings file.
@@ -84,7 +114,9 @@ public class Searching {
         try {
             this.indexSearcher = new IndexSearcher(IndexReader.open(FSDirectory.open(new File(Settings.getIndexDir()))));
             this.indexSearcher.setSimilarity(ps);
+            this.ownsReader = true;
             this.storagePath = "";
+            this.sourceStore = openSourceStore(indexSearcher.getIndexReader());
 //            sug = new TitlesSuggester(indexSearcher.getIndexReader());
         } catch (IOException ex) {
             LOG.error(ex);
@@ -102,9 +134,126 @@ public class Searching {
         this.indexSearcher = searcher;
         this.indexSearcher.setSimilarity(new PayloadSimilarity());
         this.storagePath = storagePath;
+        this.sourceStore = openSourceStore(searcher.getIndexReader());
 //        sug = new TitlesSuggester(indexSearcher.getIndexReader());
     }
 
+    /**
+     * Constructs new Searching acquiring a fresh searcher for every search from the given SearcherManager, e.g. the
+     * one of a {@link cz.muni.fi.mias.indexing.NrtIndex} shared with indexing. The searchers of the manager are
+     * expected to use the PayloadSimilarity.
+     *
+     * @param searcherManager SearcherManager of the index
+     * @param storagePath Root path where the document searched by the searcher
+     * are located
+     */
+    public Searching(SearcherManager searcherManager, String storagePath) {
+        this.searcherManager = searcherManager;
+        this.storagePath = storagePath;
+        // the sources stored with the documents of a new searcher are loaded once the manager swaps the searchers
+        this.sourceStoreRefresher = new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) {
+                    refreshSourceStore();
+                }
+            }
+        };
+        searcherManager.addListener(sourceStoreRefresher);
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                this.sourceStore = openSourceStore(searcher.getIndexReader());
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException ex) {
+            LOG.error(ex);
+        }
+    }
+
+    /**
+     * @return Source store of the index read by the reader, null if the index has none or is not in a file system
+     * directory.
+     */
+    private static SourceStore.Input openSourceStore(IndexReader reader) {
+        if (reader instanceof DirectoryReader && ((DirectoryReader) reader).directory() instanceof FSDirectory) {
+            return SourceStore.openInput(((FSDirectory) ((DirectoryReader) reader).directory()).getDirectory());
+        }
+        return null;
+    }
+
+    /**
+     * Picks up the sources stored by the indexing runs sharing the SearcherManager, called when the manager swapped
+     * the searchers.
+     */
+    private synchronized void refreshSourceStore() {
+        try {
+            if (sourceStore == null) {
+                IndexSearcher searcher = searcherManager.acquire();
+                try {
+                    sourceStore = openSourceStore(searcher.getIndexReader());
+                } finally {
+                    searcherManager.release(searcher);
+                }
+            } else {
+                sourceStore.refresh();
+            }
+        } catch (IOException ex) {
+            LOG.error("Cannot refresh source store: {}", ex.getMessage());
+        }
+    }
+
+    private static ExecutorService createSnippetsExtractionExecutor(int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+            Thread thread = new Thread(r, "mias-snippets-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Interrupts the snippet extractions in progress and releases the snippet
+     * threads and the source store. The index reader is closed if this
+     * Searching opened it.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (sourceStoreRefresher != null) {
+            searcherManager.removeListener(sourceStoreRefresher);
+        }
+        // the jobs that never started release their readers when cancelled
+        for (Runnable job : snippetsExtractionExecutor.shutdownNow()) {
+            ((Future<?>) job).cancel(false);
+        }
+        try {
+            if (sourceStore != null) {
+                sourceStore.close();
+            }
+        } finally {
+            if (ownsReader && indexSearcher != null) {
+                indexSearcher.getIndexReader().close();
+            }
+        }
+    }
+
+    private IndexSearcher acquireSearcher() throws IOException {
+        return searcherManager != null ? searcherManager.acquire() : indexSearcher;
+    }
+
+    private void releaseSearcher(IndexSearcher searcher) throws IOException {
+        if (searcherManager != null && searcher != null) {
+            searcherManager.release(searcher);
+        }
+    }
+
     /**
      * Searches the index for input in given InputStream. Used for command line
      * or file input of the query. Prints results to standard output.
@@ -161,48 +310,32 @@ public class Searching {
     public SearchResult search(String query, boolean print, int offset, int limit, boolean debug, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
         SearchResult result = new SearchResult();
         result.setQuery(query);
+        IndexSearcher searcher = null;
         try {
+            searcher = acquireSearcher();
             long start = System.currentTimeMillis();
-            ImmutablePair<Query, String> parsedQuery = parseInput(query, variant, extractSubformulae, reduceWeighting);
+            ImmutablePair<Query, String> parsedQuery = parseInput(query, variant, extractSubformulae, reduceWeighting, isFingerprinted(searcher));
             Query bq = parsedQuery.getLeft();
             String queryXMLFormulae = parsedQuery.getRight();
-            Counter clock = Counter.newCounter(true);
-            AtomicBoolean clockTicking = new AtomicBoolean(true);
-            new Thread() {
-                public void run() {
-                    while (clockTicking.get()) { // Ticking until told to stop
-                        clock.addAndGet(1); // Count one more tick
-                        try {
-                            LOG.debug("Search time limiter ticked to " + clock.get() + " (ticking every " + searchTimeLimiterTickLengthMillisec + " miliseconds)");
-                            Thread.sleep(searchTimeLimiterTickLengthMillisec); // Tick length
-                        } catch (InterruptedException ex) {
-                            LOG.error("Search time limiter ticking interrupted", ex);
-                        }
-                    }
-                    LOG.debug("Search time limiter ticking stopped at " + clock.get());
-                }
-            }.start();
-            Weight weight = indexSearcher.createNormalizedWeight(bq);
+            Weight weight = searcher.createNormalizedWeight(bq);
             TopScoreDocCollector collector = TopScoreDocCollector.create(Settings.getMaxResults(), !weight.scoresDocsOutOfOrder());
-            TimeLimitingCollector timeLimitingCollector = new TimeLimitingCollector(collector, clock, searchTimeLimiterAllowedTicks);
+            // the global counter is ticked in milliseconds by a single timer thread shared by all searches
+            Counter clock = TimeLimitingCollector.getGlobalCounter();
+            TimeLimitingCollector timeLimitingCollector = new TimeLimitingCollector(collector, clock, searchTimeoutMillisec);
             long clockBaseline = clock.get();
             timeLimitingCollector.setBaseline(clockBaseline);
             LOG.debug("Search time limiter clock baseline set to {}", clockBaseline);
             try {
-                indexSearcher.search(bq, timeLimitingCollector);
+                searcher.search(bq, timeLimitingCollector);
             } catch (TimeExceededException ex) {
                 LOG.warn("Search time limiter interrupted search thread (search limit set to "
-                        + (searchTimeLimiterTickLengthMillisec * searchTimeLimiterAllowedTicks)
-                        + " miliseconds)");
-            } finally {
-                clockTicking.set(false); // Notify clock ticking thread we are finished
-                LOG.debug("Search time limiter clock instructed to stop ticking");
+                        + searchTimeoutMillisec + " miliseconds)");
             }
             TopDocs docs = collector.topDocs(offset, limit);
-//            TopFieldDocs docs = indexSearcher.search(bq, null, Settings.getMaxResults(), Sort.RELEVANCE, true, false);
+//            TopFieldDocs docs = searcher.search(bq, null, Settings.getMaxResults(), Sort.RELEVANCE, true, false);
             long end = System.currentTimeMillis();
             result.setCoreSearchTime(end - start);
-            result.setResults(getResults(docs.scoreDocs, bq, debug));
+            result.setResults(getResults(searcher, docs.scoreDocs, bq, debug));
             result.setTotalResults(docs.totalHits);
             if (debug) {
                 result.setLuceneQuery(bq.toString());
@@ -210,10 +343,16 @@ public class Searching {
             result.setProcessedQuery(queryXMLFormulae);
             result.setTotalSearchTime(System.currentTimeMillis() - start);
             if (print) {
-                printResults(result, bq, indexSearcher);
+                printResults(result, bq, searcher);
             }
         } catch (IOException ex) {
             LOG.fatal(ex);
+        } finally {
+            try {
+                releaseSearcher(searcher);
+            } catch (IOException ex) {
+                LOG.error(ex);
+            }
         }
         return result;
     }
@@ -227,7 +366,16 @@ public class Searching {
      * @return Query instance representing input query. This query is in form of
      * (formula_1 or ... or formula_n) and (text queries)
      */
-    private ImmutablePair<Query, String> parseInput(String queryString, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
+    /**
+     * @return true if the M-terms of the searched index are fingerprints. An index without math is searched as set by
+     * MTERM_FINGERPRINTS.
+     */
+    private static boolean isFingerprinted(IndexSearcher searcher) {
+        Boolean fingerprints = FingerprintReport.detectFingerprints(searcher.getIndexReader());
+        return fingerprints != null ? fingerprints : Settings.getMTermFingerprints();
+    }
+
+    private ImmutablePair<Query, String> parseInput(String queryString, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting, boolean fingerprints) {
         BooleanQuery result = new BooleanQuery();
         List<ImmutablePair<String, Float>> qxf = new ArrayList<>();
         StringBuilder queryXMLFormulae = new StringBuilder();
@@ -236,11 +384,11 @@ public class Searching {
             BooleanQuery bq = new BooleanQuery();
             String mathQuery = "<?xml version='1.0' encoding='UTF-8'?><!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN\" \"http://www.w3.org/TR/MathML2/dtd/xhtml-math11-f.dtd\"><html>" + sep[1] + "</html>";
             if (variant == MathTokenizer.MathMLType.PRESENTATION || variant == MathTokenizer.MathMLType.BOTH) {
-                Map<String, Float> qf = addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.PRESENTATION, extractSubformulae, reduceWeighting);
+                Map<String, Float> qf = addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.PRESENTATION, extractSubformulae, reduceWeighting, fingerprints);
                 qf.forEach((xml, weight) -> qxf.add(new ImmutablePair<>(xml, weight)));
             }
             if (variant == MathTokenizer.MathMLType.CONTENT || variant == MathTokenizer.MathMLType.BOTH) {
-                Map<String, Float> qf = addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.CONTENT, extractSubformulae, reduceWeighting);
+                Map<String, Float> qf = addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.CONTENT, extractSubformulae, reduceWeighting, fingerprints);
                 qf.forEach((xml, weight) -> qxf.add(new ImmutablePair<>(xml, weight)));
             }
             result.add(bq, BooleanClause.Occur.MUST);
@@ -263,7 +411,7 @@ public class Searching {
         return new ImmutablePair<>(result, queryXMLFormulae.toString());
     }
 
-    private Map<String, Float> addMathQueries(String mathQuery, BooleanQuery bq, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
+    private Map<String, Float> addMathQueries(String mathQuery, BooleanQuery bq, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting, boolean fingerprints) {
         MathTokenizer mt = new MathTokenizer(new StringReader(mathQuery), extractSubformulae, variant, reduceWeighting);
         try {
             mt.reset();
@@ -271,21 +419,22 @@ public class Searching {
             LOG.fatal(ex);
         }
         Map<String, Float> queryForms = mt.getQueryFormulae();
-        List<Query> cQueries = getMathQueries(queryForms, variant);
+        List<Query> cQueries = getMathQueries(queryForms, variant, fingerprints);
         for (Query q : cQueries) {
             bq.add(q, BooleanClause.Occur.SHOULD);
         }
         return mt.getQueryXMLFormulae();
     }
 
-    private List<Query> getMathQueries(Map<String, Float> queryForms, MathTokenizer.MathMLType type) {
+    private List<Query> getMathQueries(Map<String, Float> queryForms, MathTokenizer.MathMLType type, boolean fingerprints) {
         String field = (type == MathTokenizer.MathMLType.PRESENTATION ? "p" : "c") + "math";
         List<Query> result = new ArrayList<>();
         Iterator<Map.Entry<String, Float>> it = queryForms.entrySet().iterator();
         while (it.hasNext()) {
             Map.Entry<String, Float> entry = it.next();
             Float boost = entry.getValue();
-            PayloadTermQuery ptq = new PayloadTermQuery(new Term(field, entry.getKey()), new AveragePayloadFunction());
+            Term term = fingerprints ? new Term(field, MTermFingerprint.toBytesRef(entry.getKey())) : new Term(field, entry.getKey());
+            PayloadTermQuery ptq = new PayloadTermQuery(term, new AveragePayloadFunction());
 
             ptq.setBoost(boost);
             result.add(ptq);
@@ -296,13 +445,14 @@ public class Searching {
     /**
      * Constructs the list with the results.
      *
+     * @param searcher
      * @param docs
      * @param query
      * @param debug
      * @return
      * @throws IOException
      */
-    private List<Result> getResults(ScoreDoc[] docs, Query query, boolean debug) throws IOException {
+    private List<Result> getResults(IndexSearcher searcher, ScoreDoc[] docs, Query query, boolean debug) throws IOException {
         List<Result> results = new ArrayList<>();
 
         // Extract snippets in separate thread with time limit on processing.
@@ -311,22 +461,26 @@ public class Searching {
         //   https://stackoverflow.com/questions/10504172/how-to-shutdown-an-executorservice
         //   https://stackoverflow.com/questions/2733356/killing-thread-after-some-specified-time-limit-in-java
         //   https://stackoverflow.com/questions/3590000/what-does-java-lang-thread-interrupt-do
-        ExecutorService snippetsExtractionExecutor = Executors.newFixedThreadPool(snippetExtractionNumOfThreads);
         HashMap<Integer, Future<String>> snippetExtractionJobs = new HashMap<>(Math.min(docs.length, snippetsEnabledLimit));
+        Map<Integer, String> textHighlights = highlightText(searcher, docs, query);
+        // all snippets of the search share one deadline
+        long snippetExtractionDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(snippetExtractionTimeoutMillisec);
+        // the jobs may outlive the search when they time out, each one holds the reader until it is done
+        IndexReader reader = searcher.getIndexReader();
 
         int resultCounter = 0;
         for (ScoreDoc sd : docs) {
 
             LOG.debug("Getting result " + (resultCounter + 1) + ": doc id " + sd.doc);
 
-            Document document = indexSearcher.doc(sd.doc);
+            Document document = searcher.doc(sd.doc);
             String fullLocalPath = document.get("path");
             String dataPath = storagePath + fullLocalPath;
 
             String title = document.get("title");
             String info = "score = " + sd.score;
             if (debug) {
-                info += "\nExplanation: \n" + indexSearcher.explain(query, sd.doc);
+                info += "\nExplanation: \n" + searcher.explain(query, sd.doc);
             }
             //SPECIAL FOR ARXMLIV
             String id = document.get("arxivId");
@@ -338,7 +492,8 @@ public class Searching {
 
             String snippet = "[[snippets disabled]]";
             if (resultCounter < snippetsEnabledLimit) {
-                Future<String> snippetExtractionJob = snippetsExtractionExecutor.submit(new Callable<String>() {
+                reader.incRef();
+                SnippetJob snippetExtractionJob = new SnippetJob(reader, new Callable<String>() {
                     @Override
                     public String call() {
                         String extractedSnippet = null;
@@ -348,7 +503,9 @@ public class Searching {
                                 snippetIs = getInputStreamFromDataPath(document);
                             }
                             if (snippetIs != null) {
-                                SnippetExtractor extractor = new NiceSnippetExtractor(snippetIs, query, sd.doc, indexSearcher.getIndexReader());
+                                String textHighlight = textHighlights == null ? null : textHighlights.getOrDefault(sd.doc, "");
+                                SnippetExtractor extractor = new NiceSnippetExtractor(snippetIs, query, sd.doc, reader,
+                                        document.getBinaryValue(FormulaContext.FIELD), textHighlight);
                                 extractedSnippet = extractor.getSnippet();
                             } else {
                                 LOG.warn("Stream is null for snippet extraction {}", dataPath);
@@ -366,7 +523,15 @@ public class Searching {
                         return extractedSnippet;
                     }
                 });
-                snippetExtractionJobs.put(resultCounter, snippetExtractionJob);
+                try {
+                    snippetsExtractionExecutor.execute(snippetExtractionJob);
+                    snippetExtractionJobs.put(resultCounter, snippetExtractionJob);
+                } catch (RejectedExecutionException ex) {
+                    snippetExtractionJob.cancel(false);
+                    LOG.warn("Snippet extraction job for document id " + sd.doc + " rejected, the snippet threads are busy");
+                    String textHighlight = textHighlights == null ? null : textHighlights.get(sd.doc);
+                    snippet = textHighlight != null ? textHighlight : "[[snippet extraction busy]]";
+                }
             } else {
                 snippet = "[[snippets disabled for result positions above " + snippetsEnabledLimit + "]]";
             }
@@ -376,16 +541,15 @@ public class Searching {
             resultCounter++;
 
         }
-        snippetsExtractionExecutor.shutdown(); // reject all further submissions of new jobs to the executor
-
         for (Map.Entry<Integer, Future<String>> numberedSnippetExtractionJob : snippetExtractionJobs.entrySet()) {
             Integer resultId = numberedSnippetExtractionJob.getKey();
             Future<String> snippetExtractionJob = numberedSnippetExtractionJob.getValue();
             String extractedSnippet = null;
             try {
                 // wait given amount of time to finish the snippet extraction job
-                extractedSnippet = snippetExtractionJob.get(snippetExtractionTimeoutMillisec, TimeUnit.MILLISECONDS);
+                extractedSnippet = snippetExtractionJob.get(Math.max(0, snippetExtractionDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
             } catch (InterruptedException ex) {
+                snippetExtractionJob.cancel(true); // the shared executor keeps running, stop the job of this search
                 LOG.warn("Snippet extraction job for document id " + docs[resultId].doc + " was interrupted", ex);
             } catch (ExecutionException ex) {
                 LOG.error("Snippet extraction job for document id " + docs[resultId].doc + " failed", ex);
@@ -396,11 +560,30 @@ public class Searching {
             }
             results.get(resultId).setSnippet(extractedSnippet != null ? extractedSnippet : "[[snippet extraction failed]]");
         }
-        snippetsExtractionExecutor.shutdownNow(); // force all unfinished tasks to quit by interrupting
-
         return results;
     }
 
+    /**
+     * Highlights the query words in the text of the results with snippets if the index has the offsets of the text.
+     *
+     * @return Highlighted text keyed by the document numbers, null if the words are to be highlighted in the sources.
+     */
+    private Map<Integer, String> highlightText(IndexSearcher searcher, ScoreDoc[] docs, Query query) {
+        if (!OffsetHighlighter.hasOffsets(searcher.getIndexReader())) {
+            return null;
+        }
+        int[] docIds = new int[Math.min(docs.length, snippetsEnabledLimit)];
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = docs[i].doc;
+        }
+        try {
+            return new OffsetHighlighter().highlight(query, searcher, docIds);
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Highlighting of the result text failed: {}", ex.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Prints results to standard output.
      *
@@ -463,12 +646,44 @@ public class Searching {
         InputStream is = null;
         try {
             String fullLocalPath = document.get("path");
+            if (sourceStore != null) {
+                is = sourceStore.get(SourceStore.key(fullLocalPath, document.get("archivepath")));
+                if (is != null) {
+                    return is;
+                }
+            }
             String dataPath = storagePath + fullLocalPath;
             File f = new File(dataPath);
 
-            if (f.exists() && !dataPath.endsWith("zip")) {
+            if (f.exists() && !dataPath.endsWith("zip") && !TarEntryDocument.isTarArchive(dataPath)) {
                 is = new FileInputStream(f);
             }
+            if (TarEntryDocument.isTarArchive(dataPath)) {
+                String archivePath = document.get("archivepath");
+                IndexableField offset = document.getField(TarEntryDocument.OFFSET_FIELD);
+                if (f.exists() && offset != null) {
+                    is = TarEntryDocument.openEntry(f, offset.numericValue().longValue(),
+                            document.getField("filesize").numericValue().longValue());
+                } else if (f.exists()) {
+                    // compressed archives are scanned up to the entry, unless the snippet is given up
+                    TarArchiveInputStream tarIs = TarEntryDocument.openArchive(f);
+                    TarArchiveEntry entry;
+                    while (is == null && !Thread.currentThread().isInterrupted() && (entry = tarIs.getNextTarEntry()) != null) {
+                        if (entry.getName().equals(archivePath)) {
+                            // the archive stream reads only the current entry
+                            is = tarIs;
+                        }
+                    }
+                    if (is == null) {
+                        tarIs.close();
+                    }
+                } else {
+                    f = new File(dataPath.substring(0, dataPath.lastIndexOf(File.separator)) + File.separator + archivePath);
+                    if (f.exists()) {
+                        is = new FileInputStream(f);
+                    }
+                }
+            }
             if (dataPath.endsWith("zip")) {
                 if (f.exists()) {
                     String archivePath = document.get("archivepath");
@@ -489,10 +704,51 @@ public class Searching {
                 }
             }
 
-        } catch (FileNotFoundException ex) {
+        } catch (IOException ex) {
             LOG.fatal(ex);
         } finally {
             return is;
         }
     }
+
+    /**
+     * Snippet extraction holding a reference to the index reader. The reference is released by the job when it
+     * ran, or by its cancellation when it never started.
+     */
+    private static class SnippetJob extends FutureTask<String> {
+
+        private final IndexReader reader;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private SnippetJob(IndexReader reader, Callable<String> extraction) {
+            super(extraction);
+            this.reader = reader;
+        }
+
+        @Override
+        public void run() {
+            if (claimed.compareAndSet(false, true)) {
+                try {
+                    super.run();
+                } finally {
+                    release();
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (claimed.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        private void release() {
+            try {
+                reader.decRef();
+            } catch (IOException ex) {
+                LOG.error("Cannot release index reader of a snippet extraction: {}", ex.getMessage());
+            }
+        }
+    }
 }
@@ -2,9 +2,11 @@ package cz.muni.fi.mias.search.snippets;
 
 import cz.muni.fi.mias.MIaSUtils;
 import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.indexing.doc.FormulaContext;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -13,6 +15,7 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.index.AtomicReaderContext;
@@ -23,10 +26,16 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * Extracts fragments around the query match and highlights it. Two most
- * significant math hits and two textual matches are highlighted.
+ * significant math hits and two textual matches are highlighted. If the
+ * document was indexed with its {@link FormulaContext}, snippets of queries
+ * with math hits only are cut from the precomputed windows and just those
+ * bytes of the source are read. The query words may be highlighted in
+ * advance by the {@link OffsetHighlighter}, then the source is only read for
+ * the math hits.
  *
  * @author Martin Liska
  */
@@ -37,6 +46,8 @@ public class NiceSnippetExtractor implements SnippetExtractor {
     private int docNumber;
     private IndexReader indexReader;
     private InputStream inputStream;
+    private FormulaContext formulaContext;
+    private String textHighlights;
 
     public NiceSnippetExtractor(InputStream in, Query q, int docNumber, IndexReader indexReader) {
         this.inputStream = in;
@@ -45,6 +56,32 @@ public class NiceSnippetExtractor implements SnippetExtractor {
         this.indexReader = indexReader;
     }
 
+    /**
+     * @param in Source of the document.
+     * @param q Query to highlight.
+     * @param docNumber Number of the document in the reader.
+     * @param indexReader Reader of the index.
+     * @param formulaContext Value of the <code>formulacontext</code> field of the document, null if it was not stored.
+     */
+    public NiceSnippetExtractor(InputStream in, Query q, int docNumber, IndexReader indexReader, BytesRef formulaContext) {
+        this(in, q, docNumber, indexReader);
+        this.formulaContext = FormulaContext.fromBytesRef(formulaContext);
+    }
+
+    /**
+     * @param in Source of the document.
+     * @param q Query to highlight.
+     * @param docNumber Number of the document in the reader.
+     * @param indexReader Reader of the index.
+     * @param formulaContext Value of the <code>formulacontext</code> field of the document, null if it was not stored.
+     * @param textHighlights Query words highlighted by the {@link OffsetHighlighter}, empty if the document text does
+     * not match and null if the words are to be highlighted in the source.
+     */
+    public NiceSnippetExtractor(InputStream in, Query q, int docNumber, IndexReader indexReader, BytesRef formulaContext, String textHighlights) {
+        this(in, q, docNumber, indexReader, formulaContext);
+        this.textHighlights = textHighlights;
+    }
+
     @Override
     public String getSnippet() throws InterruptedException {
         try {
@@ -109,9 +146,18 @@ public class NiceSnippetExtractor implements SnippetExtractor {
     }
 
     private String getSnippet(List<Span> spans, List<Query> nstqs) throws FileNotFoundException, IOException, InterruptedException {
-        String content = MIaSUtils.getContent(inputStream);
-
-        List<Snippet> snippets = getDocSnippets(spans, nstqs, content);
+        List<Query> textQueries = textHighlights != null ? Collections.<Query>emptyList() : nstqs;
+        List<Snippet> snippets = null;
+        if (textQueries.isEmpty() && (formulaContext != null || spans.isEmpty())) {
+            snippets = getContextSnippets(spans);
+        }
+        if (snippets == null) {
+            String content = MIaSUtils.getContent(inputStream);
+            snippets = getDocSnippets(spans, textQueries, content);
+        }
+        if (textHighlights != null && !textHighlights.isEmpty()) {
+            snippets.add(new Snippet(0, 0, "... " + textHighlights + " ..."));
+        }
 
         String result = "";
 
@@ -144,26 +190,113 @@ public class NiceSnippetExtractor implements SnippetExtractor {
         return dots.equals("...");
     }
 
-    private List<Snippet> getDocSnippets(List<Span> spans, List<Query> nstqs, String content) throws InterruptedException {
+    /**
+     * Cuts the snippets of the two most significant math hits from their
+     * windows in the formula context, reading only the windows from the
+     * source.
+     *
+     * @return Snippets of the math hits or null if a hit is missing in the
+     * formula context.
+     */
+    private List<Snippet> getContextSnippets(List<Span> spans) throws IOException, InterruptedException {
         List<Snippet> result = new ArrayList<>();
+        if (spans == null || spans.isEmpty()) {
+            return result;
+        }
+        removeDuplicatePositions(spans);
+        List<FormulaContext.Window> windows = new ArrayList<>();
+        for (int j = 0; j <= 1 && j < spans.size(); j++) {
+            FormulaContext.Window window = formulaContext.getWindow(spans.get(j).getPosition());
+            if (window == null) {
+                return null;
+            }
+            windows.add(window);
+        }
+        List<FormulaContext.Window> ordered = new ArrayList<>(windows);
+        ordered.sort((a, b) -> Long.compare(a.getPreStart(), b.getPreStart()));
+        long from = ordered.get(0).getPreStart();
+        long to = 0;
+        for (FormulaContext.Window window : ordered) {
+            to = Math.max(to, window.getPostEnd());
+        }
+        byte[] bytes;
+        if (ordered.size() > 1 && ordered.get(1).getPreStart() > ordered.get(0).getPostEnd()) {
+            // distant windows are read separately, skipping the source between them
+            FormulaContext.Window first = ordered.get(0);
+            FormulaContext.Window second = ordered.get(1);
+            bytes = new byte[(int) (to - from)];
+            skipFully(inputStream, from);
+            IOUtils.readFully(inputStream, bytes, 0, (int) (first.getPostEnd() - from));
+            skipFully(inputStream, second.getPreStart() - first.getPostEnd());
+            IOUtils.readFully(inputStream, bytes, (int) (second.getPreStart() - from), (int) (to - second.getPreStart()));
+        } else {
+            bytes = new byte[(int) (to - from)];
+            skipFully(inputStream, from);
+            IOUtils.readFully(inputStream, bytes);
+        }
+        for (FormulaContext.Window window : windows) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Snippet extraction thread interrupted during span processing");
+            }
+            String pre = text(bytes, window.getPreStart() - from, window.getStart() - from);
+            String math = text(bytes, window.getStart() - from, window.getEnd() - from);
+            String post = text(bytes, window.getEnd() - from, window.getPostEnd() - from);
+            if (pre.isEmpty() || !Character.isUpperCase(pre.charAt(0))) {
+                pre = "... " + pre;
+            }
+            if (post.isEmpty() || (post.charAt(post.length() - 1)) != '.') {
+                post += " ...";
+            }
+            String snipp = "<span class=\"highlight\">"
+                    + math.replace("display=\"block\"", "display=\"inline\"")
+                    + "</span>";
+            result.add(new Snippet((int) window.getPreStart(), (int) window.getPostEnd(), pre + snipp + post));
+        }
+        return result;
+    }
 
-        if (spans != null && !spans.isEmpty()) {
-            Collections.sort(spans);
-            //remove duplicite positions from generalization
-            Iterator<Span> itSpan = spans.iterator();
-            int prevPosition = -1;
-            while (itSpan.hasNext()) {
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new InterruptedException("Snippet extraction thread interrupted during span processing");
-                }
-                Span span = itSpan.next();
-                int currentPosition = span.getPosition();
-                if (currentPosition == prevPosition) {
-                    itSpan.remove();
-                }
-                prevPosition = currentPosition;
+    /**
+     * Skips the source by the skip of the stream, IOUtils reads the skipped bytes, so the source store would inflate
+     * the blocks skipped over.
+     */
+    private static void skipFully(InputStream in, long toSkip) throws IOException {
+        while (toSkip > 0) {
+            long skipped = in.skip(toSkip);
+            if (skipped <= 0) {
+                IOUtils.skipFully(in, 1);
+                skipped = 1;
+            }
+            toSkip -= skipped;
+        }
+    }
+
+    private static String text(byte[] bytes, long start, long end) {
+        return new String(bytes, (int) start, (int) (end - start), StandardCharsets.UTF_8);
+    }
 
+    private static void removeDuplicatePositions(List<Span> spans) throws InterruptedException {
+        Collections.sort(spans);
+        //remove duplicite positions from generalization
+        Iterator<Span> itSpan = spans.iterator();
+        int prevPosition = -1;
+        while (itSpan.hasNext()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Snippet extraction thread interrupted during span processing");
+            }
+            Span span = itSpan.next();
+            int currentPosition = span.getPosition();
+            if (currentPosition == prevPosition) {
+                itSpan.remove();
             }
+            prevPosition = currentPosition;
+        }
+    }
+
+    private List<Snippet> getDocSnippets(List<Span> spans, List<Query> nstqs, String content) throws InterruptedException {
+        List<Snippet> result = new ArrayList<>();
+
+        if (spans != null && !spans.isEmpty()) {
+            removeDuplicatePositions(spans);
             String mathStart = "<math";
             String mathEnd = "</math>";
             for (int j = 0; j <= 1 && j < spans.size(); j++) {
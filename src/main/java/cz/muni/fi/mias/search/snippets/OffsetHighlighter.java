@@ -0,0 +1,102 @@
+package cz.muni.fi.mias.search.snippets;
+
+import java.io.IOException;
+import java.text.BreakIterator;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.postingshighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.postingshighlight.Passage;
+import org.apache.lucene.search.postingshighlight.PassageFormatter;
+import org.apache.lucene.search.postingshighlight.PostingsHighlighter;
+
+/**
+ * Highlights the query words in the <code>content</code> and <code>title</code> fields indexed with CONTENT_OFFSETS.
+ * The best sentences are picked and highlighted by the offsets of the matching terms in the postings, so the stored
+ * text is neither lower-cased nor searched. Documents without a matching word get no text snippet.
+ */
+public class OffsetHighlighter extends PostingsHighlighter {
+
+    private static final String[] FIELDS = {"content", "title"};
+    private static final int[] MAX_PASSAGES = {2, 1};
+    private static final PassageFormatter FORMATTER = new DefaultPassageFormatter("<span class=\"highlight\">", "</span>", " ... ", true) {
+        @Override
+        protected void append(StringBuilder dest, String content, int start, int end) {
+            // the snippets are html, only its special characters are escaped
+            for (int i = start; i < end; i++) {
+                char ch = content.charAt(i);
+                switch (ch) {
+                    case '&':
+                        dest.append("&amp;");
+                        break;
+                    case '<':
+                        dest.append("&lt;");
+                        break;
+                    case '>':
+                        dest.append("&gt;");
+                        break;
+                    case '"':
+                        dest.append("&quot;");
+                        break;
+                    default:
+                        dest.append(ch);
+                }
+            }
+        }
+    };
+
+    public OffsetHighlighter() {
+        // the whole text is highlighted like the source was
+        super(Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * @param reader Reader of an index.
+     * @return true if the content field of the index is indexed with offsets
+     */
+    public static boolean hasOffsets(IndexReader reader) {
+        FieldInfo info = MultiFields.getMergedFieldInfos(reader).fieldInfo(FIELDS[0]);
+        return info != null && info.getIndexOptions() == FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS;
+    }
+
+    /**
+     * Highlights the text of documents. The passages of the content are preferred, the title is used if the content
+     * does not match.
+     *
+     * @param query Query of the search.
+     * @param searcher Searcher of the search.
+     * @param docIds Numbers of the documents.
+     * @return Highlighted passages keyed by the numbers of the documents, without the documents that do not match.
+     * @throws IOException
+     */
+    public Map<Integer, String> highlight(Query query, IndexSearcher searcher, int[] docIds) throws IOException {
+        Map<Integer, String> result = new HashMap<>();
+        if (docIds.length == 0) {
+            return result;
+        }
+        Map<String, String[]> highlights = highlightFields(FIELDS, searcher.rewrite(query), searcher, docIds, MAX_PASSAGES);
+        String[] content = highlights.get(FIELDS[0]);
+        String[] title = highlights.get(FIELDS[1]);
+        for (int i = 0; i < docIds.length; i++) {
+            String text = content[i] != null ? content[i].trim() : title[i] == null ? null : title[i].trim();
+            if (text != null && !text.isEmpty()) {
+                result.put(docIds[i], text);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected PassageFormatter getFormatter(String field) {
+        return FORMATTER;
+    }
+
+    @Override
+    protected Passage[] getEmptyHighlight(String fieldName, BreakIterator bi, int maxPassages) {
+        return new Passage[0];
+    }
+}